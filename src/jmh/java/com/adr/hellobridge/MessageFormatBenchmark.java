@@ -0,0 +1,88 @@
+//    HelloBridge is a bridge from HTTP to MQTT
+//    Copyright (C) 2019 Adrián Romero Corchado.
+//
+//    This file is part of HelloBridge.
+//
+//    HelloIot is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    HelloIot is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with HelloIot.  If not, see <http://www.gnu.org/licenses/>.
+//
+package com.adr.hellobridge;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Decoding of published messages and encoding of webhook messages, for plain
+ * and base64 payloads.
+ *
+ * @author adrian
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Benchmark)
+public class MessageFormatBenchmark {
+
+    @Param({"16", "1024", "65536"})
+    public int size;
+
+    private byte[] payload;
+    private String plain;
+    private String base64;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        payload = new byte[size];
+        random.nextBytes(payload);
+        StringBuilder sb = new StringBuilder("plain:");
+        for (int i = 0; i < size; i++) {
+            sb.append((char) ('a' + random.nextInt(26)));
+        }
+        plain = sb.toString();
+        base64 = SubscriptionDefinition.formatMessage(payload, SubscriptionDefinition.FORMAT_BASE64);
+    }
+
+    @Benchmark
+    public byte[] parsePlain() {
+        return SubscriptionDefinition.parseMessage(plain);
+    }
+
+    @Benchmark
+    public byte[] parseBase64() {
+        return SubscriptionDefinition.parseMessage(base64);
+    }
+
+    @Benchmark
+    public String formatPlain() {
+        return SubscriptionDefinition.formatMessage(payload, SubscriptionDefinition.PLAIN);
+    }
+
+    @Benchmark
+    public String formatBase64() {
+        return SubscriptionDefinition.formatMessage(payload, SubscriptionDefinition.FORMAT_BASE64);
+    }
+}
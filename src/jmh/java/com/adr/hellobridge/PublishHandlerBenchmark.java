@@ -0,0 +1,107 @@
+//    HelloBridge is a bridge from HTTP to MQTT
+//    Copyright (C) 2019 Adrián Romero Corchado.
+//
+//    This file is part of HelloBridge.
+//
+//    HelloIot is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    HelloIot is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with HelloIot.  If not, see <http://www.gnu.org/licenses/>.
+//
+package com.adr.hellobridge;
+
+import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Parsing of publish request bodies and building of the JSON responses, as
+ * done by the publish handlers in Main.
+ *
+ * @author adrian
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Benchmark)
+public class PublishHandlerBenchmark {
+
+    private static final int BULK = 100;
+
+    @Param({"16", "1024"})
+    public int size;
+
+    private byte[] single;
+    private byte[] bulk;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        byte[] payload = new byte[size];
+        random.nextBytes(payload);
+        String item = "\"message\": \"base64:" + Base64.getEncoder().encodeToString(payload) + "\", \"qos\": 1, \"retained\": false";
+
+        single = ("{" + item + "}").getBytes(StandardCharsets.UTF_8);
+        StringBuilder sb = new StringBuilder("[");
+        for (int i = 0; i < BULK; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append("{\"topic\": \"devices/").append(i).append("/state\", ").append(item).append('}');
+        }
+        bulk = sb.append(']').toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public EventMessage parseSingle() throws IOException {
+        try (JsonReader reader = PublishReader.createJsonReader(new ByteArrayInputStream(single))) {
+            return PublishReader.readMessage(reader, "devices/1/state");
+        }
+    }
+
+    @Benchmark
+    public void parseBulk(Blackhole bh) throws IOException {
+        try (JsonReader reader = PublishReader.createJsonReader(new ByteArrayInputStream(bulk))) {
+            reader.beginArray();
+            while (reader.hasNext()) {
+                bh.consume(PublishReader.readMessage(reader, null));
+            }
+            reader.endArray();
+        }
+    }
+
+    @Benchmark
+    public String buildResponse() {
+        JsonObject result = new JsonObject();
+        result.addProperty("success", true);
+        result.addProperty("message", "Successfully sent message to topic [devices/1/state]");
+        return result.toString();
+    }
+}
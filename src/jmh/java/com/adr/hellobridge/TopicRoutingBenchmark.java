@@ -0,0 +1,102 @@
+//    HelloBridge is a bridge from HTTP to MQTT
+//    Copyright (C) 2019 Adrián Romero Corchado.
+//
+//    This file is part of HelloBridge.
+//
+//    HelloIot is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    HelloIot is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with HelloIot.  If not, see <http://www.gnu.org/licenses/>.
+//
+package com.adr.hellobridge;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Routing of received topics through the subscription trie used by
+ * GroupManagers, with a growing number of subscriptions and topic levels.
+ *
+ * @author adrian
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Benchmark)
+public class TopicRoutingBenchmark {
+
+    private static final int TOPICS = 1024;
+
+    @Param({"10", "1000", "10000"})
+    public int subscriptions;
+
+    @Param({"3", "6"})
+    public int depth;
+
+    private TopicTrie<SubscriptionDefinition> routes;
+    private String[] topics;
+    private int next = 0;
+
+    @Setup
+    public void setup() {
+        // Fixed seed, same subscriptions and topics in every run
+        Random random = new Random(42);
+        routes = new TopicTrie<>();
+        for (int i = 0; i < subscriptions; i++) {
+            String filter = filter(random, i);
+            routes.add(filter, new SubscriptionDefinition("sub" + i, filter, SubscriptionDefinition.PLAIN, 0));
+        }
+        topics = new String[TOPICS];
+        for (int i = 0; i < TOPICS; i++) {
+            topics[i] = topic(random);
+        }
+    }
+
+    @Benchmark
+    public void match(Blackhole bh) {
+        routes.match(topics[next++ & (TOPICS - 1)], (value, hole) -> hole.consume(value), bh);
+    }
+
+    private String filter(Random random, int i) {
+        StringBuilder sb = new StringBuilder("device").append(random.nextInt(subscriptions));
+        for (int level = 1; level < depth; level++) {
+            sb.append('/');
+            if (level == depth - 1 && i % 10 == 0) {
+                sb.append('#');
+                return sb.toString();
+            }
+            sb.append(i % 7 == 0 ? "+" : "level" + random.nextInt(4));
+        }
+        return sb.toString();
+    }
+
+    private String topic(Random random) {
+        StringBuilder sb = new StringBuilder("device").append(random.nextInt(subscriptions));
+        for (int level = 1; level < depth; level++) {
+            sb.append("/level").append(random.nextInt(4));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,344 @@
+//    HelloBridge is a bridge from HTTP to MQTT
+//    Copyright (C) 2019 Adrián Romero Corchado.
+//
+//    This file is part of HelloBridge.
+//
+//    HelloIot is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    HelloIot is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with HelloIot.  If not, see <http://www.gnu.org/licenses/>.
+//
+package com.adr.hellobridge;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Minimal in-process MQTT 3.1.1 broker for load tests. Routes publications
+ * to subscribers with at most QoS 1, and to one member of each shared
+ * subscription group. It does not keep sessions, retained messages or
+ * in-flight messages, and does not authenticate clients.
+ *
+ * @author adrian
+ */
+public class EmbeddedBroker implements Closeable {
+
+    private final static Logger logger = Logger.getLogger(EmbeddedBroker.class.getName());
+
+    private static final int CONNECT = 1;
+    private static final int PUBLISH = 3;
+    private static final int PUBREL = 6;
+    private static final int SUBSCRIBE = 8;
+    private static final int UNSUBSCRIBE = 10;
+    private static final int PINGREQ = 12;
+    private static final int DISCONNECT = 14;
+
+    private final int port;
+    private final TopicTrie<Receiver> subscriptions = new TopicTrie<>();
+    private final Map<String, SharedGroup> groups = new HashMap<>();
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final List<Session> sessions = new CopyOnWriteArrayList<>();
+    private final AtomicInteger counter = new AtomicInteger();
+    private ServerSocket server;
+
+    public EmbeddedBroker(int port) {
+        this.port = port;
+    }
+
+    public void start() throws IOException {
+        server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        Thread acceptor = new Thread(this::accept, "hellobridge-broker-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        logger.log(Level.INFO, "Embedded MQTT broker listening on port {0}", Integer.toString(getPort()));
+    }
+
+    public int getPort() {
+        return server.getLocalPort();
+    }
+
+    @Override
+    public void close() throws IOException {
+        server.close();
+        for (Session session : sessions) {
+            session.close();
+        }
+    }
+
+    private void accept() {
+        while (!server.isClosed()) {
+            try {
+                Socket socket = server.accept();
+                socket.setTcpNoDelay(true);
+                Session session = new Session(socket);
+                sessions.add(session);
+                Thread t = new Thread(session::run, "hellobridge-broker-" + counter.incrementAndGet());
+                t.setDaemon(true);
+                t.start();
+            } catch (IOException ex) {
+                if (!server.isClosed()) {
+                    logger.log(Level.WARNING, "Cannot accept MQTT connection.", ex);
+                }
+            }
+        }
+    }
+
+    private void publish(EventMessage message) {
+        lock.readLock().lock();
+        try {
+            subscriptions.match(message.getTopic(), Receiver::deliver, message);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void subscribe(String filter, Subscription subscription) {
+        lock.writeLock().lock();
+        try {
+            int slash = filter.indexOf('/', SubscriptionDefinition.SHARE_PREFIX.length());
+            if (filter.startsWith(SubscriptionDefinition.SHARE_PREFIX) && slash > 0) {
+                SharedGroup group = groups.get(filter);
+                if (group == null) {
+                    group = new SharedGroup();
+                    groups.put(filter, group);
+                    subscriptions.add(filter.substring(slash + 1), group);
+                }
+                group.members.add(subscription);
+            } else {
+                subscriptions.add(filter, subscription);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private class Session {
+
+        private final Socket socket;
+        private final OutputStream out;
+        private int packetid = 0;
+        private volatile boolean closed = false;
+
+        Session(Socket socket) throws IOException {
+            this.socket = socket;
+            this.out = new BufferedOutputStream(socket.getOutputStream());
+        }
+
+        void run() {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()))) {
+                int header;
+                while ((header = in.read()) >= 0) {
+                    byte[] body = new byte[readLength(in)];
+                    in.readFully(body);
+                    if (!handle(header, body)) {
+                        break;
+                    }
+                }
+            } catch (IOException ex) {
+                if (!closed) {
+                    logger.log(Level.FINE, "MQTT connection closed.", ex);
+                }
+            } finally {
+                close();
+            }
+        }
+
+        private boolean handle(int header, byte[] body) throws IOException {
+            switch (header >> 4) {
+                case CONNECT:
+                    // Accepted, no session present
+                    write(new byte[]{0x20, 2, 0, 0});
+                    return true;
+                case PUBLISH:
+                    int qos = (header >> 1) & 3;
+                    int topiclength = readShort(body, 0);
+                    String topic = new String(body, 2, topiclength, StandardCharsets.UTF_8);
+                    int offset = 2 + topiclength;
+                    int id = 0;
+                    if (qos > 0) {
+                        id = readShort(body, offset);
+                        offset += 2;
+                    }
+                    publish(new EventMessage(topic, Arrays.copyOfRange(body, offset, body.length), qos, (header & 1) != 0));
+                    if (qos == 1) {
+                        write(new byte[]{0x40, 2, (byte) (id >> 8), (byte) id}); // PUBACK
+                    } else if (qos == 2) {
+                        write(new byte[]{0x50, 2, (byte) (id >> 8), (byte) id}); // PUBREC
+                    }
+                    return true;
+                case PUBREL:
+                    write(new byte[]{0x70, 2, body[0], body[1]}); // PUBCOMP
+                    return true;
+                case SUBSCRIBE:
+                    int count = 0;
+                    byte[] granted = new byte[body.length];
+                    for (int i = 2; i < body.length; i += 3) {
+                        int length = readShort(body, i);
+                        String filter = new String(body, i + 2, length, StandardCharsets.UTF_8);
+                        i += length;
+                        int subqos = Math.min(1, body[i + 2]);
+                        subscribe(filter, new Subscription(this, subqos));
+                        granted[count++] = (byte) subqos;
+                    }
+                    byte[] suback = new byte[4 + count];
+                    suback[0] = (byte) 0x90;
+                    suback[1] = (byte) (2 + count);
+                    suback[2] = body[0];
+                    suback[3] = body[1];
+                    System.arraycopy(granted, 0, suback, 4, count);
+                    write(suback);
+                    return true;
+                case UNSUBSCRIBE:
+                    // Subscriptions end with the connection
+                    write(new byte[]{(byte) 0xB0, 2, body[0], body[1]});
+                    return true;
+                case PINGREQ:
+                    write(new byte[]{(byte) 0xD0, 0});
+                    return true;
+                case DISCONNECT:
+                    return false;
+                default:
+                    // Acknowledgements of messages sent to subscribers
+                    return true;
+            }
+        }
+
+        void deliver(EventMessage message, int subqos) {
+            if (closed) {
+                return;
+            }
+            int qos = Math.min(subqos, message.getQoS());
+            byte[] topic = message.getTopic().getBytes(StandardCharsets.UTF_8);
+            int length = 2 + topic.length + (qos > 0 ? 2 : 0) + message.getMessage().length;
+            try {
+                synchronized (this) {
+                    out.write(0x30 | (qos << 1));
+                    writeLength(out, length);
+                    out.write(topic.length >> 8);
+                    out.write(topic.length);
+                    out.write(topic);
+                    if (qos > 0) {
+                        packetid = packetid % 0xFFFF + 1;
+                        out.write(packetid >> 8);
+                        out.write(packetid);
+                    }
+                    out.write(message.getMessage());
+                    out.flush();
+                }
+            } catch (IOException ex) {
+                close();
+            }
+        }
+
+        private synchronized void write(byte[] packet) throws IOException {
+            out.write(packet);
+            out.flush();
+        }
+
+        void close() {
+            if (!closed) {
+                closed = true;
+                sessions.remove(this);
+                try {
+                    socket.close();
+                } catch (IOException ex) {
+                    logger.log(Level.FINE, null, ex);
+                }
+            }
+        }
+    }
+
+    private interface Receiver {
+
+        void deliver(EventMessage message);
+    }
+
+    private static class Subscription implements Receiver {
+
+        private final Session session;
+        private final int qos;
+
+        Subscription(Session session, int qos) {
+            this.session = session;
+            this.qos = qos;
+        }
+
+        @Override
+        public void deliver(EventMessage message) {
+            session.deliver(message, qos);
+        }
+    }
+
+    // Members of a shared subscription take the messages in turns
+    private static class SharedGroup implements Receiver {
+
+        private final List<Subscription> members = new CopyOnWriteArrayList<>();
+        private final AtomicInteger next = new AtomicInteger();
+
+        @Override
+        public void deliver(EventMessage message) {
+            int size = members.size();
+            for (int i = 0; i < size; i++) {
+                Subscription member = members.get((next.getAndIncrement() & 0x7fffffff) % size);
+                if (!member.session.closed) {
+                    member.deliver(message);
+                    return;
+                }
+            }
+        }
+    }
+
+    private static int readShort(byte[] b, int offset) {
+        return ((b[offset] & 0xFF) << 8) | (b[offset + 1] & 0xFF);
+    }
+
+    private static int readLength(DataInputStream in) throws IOException {
+        int length = 0;
+        int shift = 0;
+        int b;
+        do {
+            b = in.read();
+            if (b < 0) {
+                throw new EOFException();
+            }
+            length |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return length;
+    }
+
+    private static void writeLength(OutputStream out, int length) throws IOException {
+        do {
+            int b = length & 0x7F;
+            length >>>= 7;
+            out.write(length > 0 ? b | 0x80 : b);
+        } while (length > 0);
+    }
+}
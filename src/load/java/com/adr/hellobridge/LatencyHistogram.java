@@ -0,0 +1,84 @@
+//    HelloBridge is a bridge from HTTP to MQTT
+//    Copyright (C) 2019 Adrián Romero Corchado.
+//
+//    This file is part of HelloBridge.
+//
+//    HelloIot is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    HelloIot is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with HelloIot.  If not, see <http://www.gnu.org/licenses/>.
+//
+package com.adr.hellobridge;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency histogram with microsecond resolution and under 1% error, to
+ * report high percentiles. Recording is lock free and does not allocate.
+ *
+ * @author adrian
+ */
+public class LatencyHistogram {
+
+    // 128 sub-buckets for each power of two
+    private static final int SUB_BITS = 7;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+
+    private final AtomicLongArray counts = new AtomicLongArray((64 - SUB_BITS) * SUB_COUNT);
+
+    public void record(long nanos) {
+        counts.incrementAndGet(index(Math.max(0L, TimeUnit.NANOSECONDS.toMicros(nanos))));
+    }
+
+    public void recordSince(long startnanos) {
+        record(System.nanoTime() - startnanos);
+    }
+
+    public long getCount() {
+        long total = 0L;
+        for (int i = 0; i < counts.length(); i++) {
+            total += counts.get(i);
+        }
+        return total;
+    }
+
+    // Latency in milliseconds below which the given fraction of the values are
+    public double getPercentile(double fraction) {
+        long target = Math.max(1L, (long) Math.ceil(fraction * getCount()));
+        long cumulative = 0L;
+        for (int i = 0; i < counts.length(); i++) {
+            cumulative += counts.get(i);
+            if (cumulative >= target) {
+                return value(i) / 1000.0;
+            }
+        }
+        return 0.0;
+    }
+
+    private static int index(long micros) {
+        if (micros < SUB_COUNT) {
+            return (int) micros;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        int sub = (int) (micros >>> (exponent - SUB_BITS)) & (SUB_COUNT - 1);
+        return (exponent - SUB_BITS + 1) * SUB_COUNT + sub;
+    }
+
+    private static long value(int index) {
+        if (index < SUB_COUNT) {
+            return index;
+        }
+        int exponent = index / SUB_COUNT + SUB_BITS - 1;
+        long sub = index % SUB_COUNT;
+        return (SUB_COUNT | sub) << (exponent - SUB_BITS);
+    }
+}
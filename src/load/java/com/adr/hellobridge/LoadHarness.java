@@ -0,0 +1,218 @@
+//    HelloBridge is a bridge from HTTP to MQTT
+//    Copyright (C) 2019 Adrián Romero Corchado.
+//
+//    This file is part of HelloBridge.
+//
+//    HelloIot is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    HelloIot is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with HelloIot.  If not, see <http://www.gnu.org/licenses/>.
+//
+package com.adr.hellobridge;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import okhttp3.ConnectionPool;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+
+/**
+ * Load test of the bridge running offline. Starts the bridge as Main does,
+ * against an embedded MQTT broker and a stub webhook receiver, drives HTTP
+ * publish requests and MQTT messages at fixed rates and reports throughput
+ * and latency percentiles of both directions.
+ *
+ * Messages carry the time they were scheduled, so latencies include the
+ * time waiting behind slow requests.
+ *
+ * @author adrian
+ */
+public class LoadHarness {
+
+    private static final MediaType JSON = MediaType.parse("application/json; charset=utf-8");
+    // Kept to not lose the level configuration
+    private static final Logger bridgelogger = Logger.getLogger("com.adr.hellobridge");
+
+    public static void main(String[] args) throws Exception {
+
+        Properties config = new Properties();
+        if (args.length > 0) {
+            try (InputStream in = new FileInputStream(new File(args[0]))) {
+                config.load(in);
+            }
+        }
+
+        bridgelogger.setLevel(Level.parse(config.getProperty("load.loglevel", "WARNING")));
+
+        long duration = TimeUnit.SECONDS.toNanos(Long.parseLong(config.getProperty("load.duration.s", "30")));
+        long drain = TimeUnit.SECONDS.toMillis(Long.parseLong(config.getProperty("load.drain.s", "10")));
+        int httprate = Integer.parseInt(config.getProperty("load.http.rate", "1000"));
+        int httpthreads = Integer.parseInt(config.getProperty("load.http.threads", "16"));
+        int httptopics = Integer.parseInt(config.getProperty("load.http.topics", "100"));
+        int mqttrate = Integer.parseInt(config.getProperty("load.mqtt.rate", "1000"));
+        int mqttqos = Integer.parseInt(config.getProperty("load.mqtt.qos", "0"));
+        int mqtttopics = Integer.parseInt(config.getProperty("load.mqtt.topics", "100"));
+
+        EmbeddedBroker broker = new EmbeddedBroker(Integer.parseInt(config.getProperty("load.broker.port", "11883")));
+        broker.start();
+
+        StubWebhook webhook = new StubWebhook(
+                Integer.parseInt(config.getProperty("load.webhook.port", "18081")),
+                Integer.parseInt(config.getProperty("load.webhook.threads", "200")),
+                Long.parseLong(config.getProperty("load.webhook.latency.ms", "0")));
+        webhook.start();
+
+        // Bridge configuration not given in the load configuration
+        setDefault(config, "mqtt.host", "localhost");
+        setDefault(config, "mqtt.port", Integer.toString(broker.getPort()));
+        setDefault(config, "mqtt.clientid", "hellobridge-load");
+        setDefault(config, "web.port", "18080");
+        setDefault(config, "web.token", "HELLOBRIDGELOAD");
+        setDefault(config, "mqtt.topic.load", "load/in/#");
+        setDefault(config, "webhook.url", "http://localhost:" + config.getProperty("load.webhook.port", "18081") + "/hook");
+
+        Main.start(config).awaitInitialization();
+
+        String url = "http://localhost:" + config.getProperty("web.port") + "/load/out/";
+        String authorization = "Basic " + Base64.getEncoder().encodeToString(("mqtt:" + config.getProperty("web.token")).getBytes(StandardCharsets.UTF_8));
+        OkHttpClient client = new OkHttpClient.Builder()
+                .connectionPool(new ConnectionPool(httpthreads, 5, TimeUnit.MINUTES))
+                .build();
+
+        MqttAsyncClient publisher = new MqttAsyncClient("tcp://localhost:" + broker.getPort(), "hellobridge-load-publisher", new MemoryPersistence());
+        MqttConnectOptions options = new MqttConnectOptions();
+        options.setMaxInflight(65535);
+        publisher.connect(options).waitForCompletion(5000);
+
+        LatencyHistogram httplatency = new LatencyHistogram();
+        LongAdder httpsent = new LongAdder();
+        LongAdder httperrors = new LongAdder();
+        LongAdder mqttsent = new LongAdder();
+        LongAdder mqtterrors = new LongAdder();
+
+        long start = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+        long end = start + duration;
+        List<Thread> drivers = new ArrayList<>();
+
+        if (httprate > 0) {
+            long interval = TimeUnit.SECONDS.toNanos(httpthreads) / httprate;
+            for (int i = 0; i < httpthreads; i++) {
+                long first = start + interval * i / httpthreads;
+                int thread = i;
+                drivers.add(new Thread(() -> {
+                    int n = thread;
+                    for (long scheduled = first; scheduled < end; scheduled += interval) {
+                        waitUntil(scheduled);
+                        String body = "{\"message\": \"" + scheduled + "\"}";
+                        Request request = new Request.Builder()
+                                .url(url + (n++ % httptopics))
+                                .header("Authorization", authorization)
+                                .post(RequestBody.create(JSON, body))
+                                .build();
+                        httpsent.increment();
+                        try (Response response = client.newCall(request).execute()) {
+                            if (response.isSuccessful()) {
+                                httplatency.recordSince(scheduled);
+                            } else {
+                                httperrors.increment();
+                            }
+                        } catch (IOException ex) {
+                            httperrors.increment();
+                        }
+                    }
+                }, "hellobridge-load-http-" + i));
+            }
+        }
+
+        if (mqttrate > 0) {
+            long interval = TimeUnit.SECONDS.toNanos(1) / mqttrate;
+            drivers.add(new Thread(() -> {
+                int n = 0;
+                for (long scheduled = start; scheduled < end; scheduled += interval) {
+                    waitUntil(scheduled);
+                    MqttMessage message = new MqttMessage(Long.toString(scheduled).getBytes(StandardCharsets.UTF_8));
+                    message.setQos(mqttqos);
+                    mqttsent.increment();
+                    try {
+                        publisher.publish("load/in/" + (n++ % mqtttopics), message);
+                    } catch (MqttException ex) {
+                        mqtterrors.increment();
+                    }
+                }
+            }, "hellobridge-load-mqtt"));
+        }
+
+        for (Thread t : drivers) {
+            t.start();
+        }
+        for (Thread t : drivers) {
+            t.join();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        // Messages still in the bridge queues
+        long deadline = System.currentTimeMillis() + drain;
+        while (webhook.getLatency().getCount() < mqttsent.sum() - mqtterrors.sum() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(100L);
+        }
+
+        System.out.printf("%-16s %10s %10s %10s %12s %10s %10s %10s%n", "direction", "sent", "errors", "received", "msg/s", "p50 ms", "p99 ms", "p999 ms");
+        report("http->mqtt", httpsent.sum(), httperrors.sum(), httplatency, seconds);
+        report("mqtt->webhook", mqttsent.sum(), mqtterrors.sum(), webhook.getLatency(), seconds);
+        System.out.printf("Webhook requests: %d%n", webhook.getRequests());
+
+        publisher.disconnect().waitForCompletion(5000);
+        publisher.close();
+        webhook.stop();
+        // The bridge is stopped by its shutdown hook
+        System.exit(0);
+    }
+
+    private static void report(String direction, long sent, long errors, LatencyHistogram latency, double seconds) {
+        long received = latency.getCount();
+        System.out.printf("%-16s %10d %10d %10d %12.1f %10.3f %10.3f %10.3f%n",
+                direction, sent, errors, received, received / seconds,
+                latency.getPercentile(0.50), latency.getPercentile(0.99), latency.getPercentile(0.999));
+    }
+
+    private static void waitUntil(long nanos) {
+        long remaining;
+        while ((remaining = nanos - System.nanoTime()) > 0L) {
+            LockSupport.parkNanos(remaining);
+        }
+    }
+
+    private static void setDefault(Properties config, String key, String value) {
+        if (config.getProperty(key) == null) {
+            config.setProperty(key, value);
+        }
+    }
+}
@@ -0,0 +1,100 @@
+//    HelloBridge is a bridge from HTTP to MQTT
+//    Copyright (C) 2019 Adrián Romero Corchado.
+//
+//    This file is part of HelloBridge.
+//
+//    HelloIot is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    HelloIot is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with HelloIot.  If not, see <http://www.gnu.org/licenses/>.
+//
+package com.adr.hellobridge;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import spark.Request;
+import spark.Response;
+import spark.Service;
+
+/**
+ * Webhook receiver for load tests. Answers every POST after a configurable
+ * delay and records the time since each message was published, taken from
+ * the message content.
+ *
+ * @author adrian
+ */
+public class StubWebhook {
+
+    private final int port;
+    private final int threads;
+    private final long delay;
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final LongAdder requests = new LongAdder();
+    private Service service;
+
+    public StubWebhook(int port, int threads, long delay) {
+        this.port = port;
+        this.threads = threads;
+        this.delay = delay;
+    }
+
+    public void start() {
+        service = Service.ignite();
+        service.port(port);
+        service.threadPool(threads);
+        service.post("/*", this::handle);
+        service.awaitInitialization();
+    }
+
+    public void stop() {
+        service.stop();
+    }
+
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+
+    public long getRequests() {
+        return requests.sum();
+    }
+
+    private Object handle(Request request, Response response) throws InterruptedException {
+        long now = System.nanoTime();
+        requests.increment();
+        JsonElement body = new JsonParser().parse(request.body());
+        // An array when the subscription delivers in batches
+        if (body.isJsonArray()) {
+            for (JsonElement item : (JsonArray) body) {
+                record(now, item);
+            }
+        } else {
+            record(now, body);
+        }
+        if (delay > 0L) {
+            TimeUnit.MILLISECONDS.sleep(delay);
+        }
+        response.type("application/json");
+        return "{}";
+    }
+
+    private void record(long now, JsonElement item) {
+        JsonObject message = item.getAsJsonObject();
+        try {
+            latency.record(now - Long.parseLong(message.get("message").getAsString()));
+        } catch (NumberFormatException | NullPointerException ex) {
+            // Not published by the load generator
+        }
+    }
+}
@@ -0,0 +1,222 @@
+//    HelloBridge is a bridge from HTTP to MQTT
+//    Copyright (C) 2019 Adrián Romero Corchado.
+//
+//    This file is part of HelloBridge.
+//
+//    HelloIot is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    HelloIot is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with HelloIot.  If not, see <http://www.gnu.org/licenses/>.
+//
+package com.adr.hellobridge;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Verifies the Authorization header of HTTP requests. Basic credentials are
+ * compared in constant time with the header precomputed at startup. Bearer
+ * tokens are JWT signed with HMAC SHA-256, and may restrict the topics the
+ * client can use. Verified tokens are kept in a bounded cache until they
+ * expire, so signatures are checked once per token and not per request.
+ *
+ * @author adrian
+ */
+public class Authenticator {
+
+    private static final String BASIC = "Basic ";
+    private static final String BEARER = "Bearer ";
+    private static final String HMAC = "HmacSHA256";
+    private static final JsonParser PARSER = new JsonParser();
+
+    // Unrestricted access granted by the application token
+    public static final Grant ALL = new Grant("mqtt", null, Long.MAX_VALUE);
+
+    private final String basic;
+    private final byte[] basiccredentials;
+    private final SecretKeySpec secret;
+    private final int cachesize;
+    private final Map<String, Grant> cache = new ConcurrentHashMap<>();
+
+    public Authenticator(String token, byte[] secret, int cachesize) {
+        this.basiccredentials = ("mqtt:" + token).getBytes(StandardCharsets.UTF_8);
+        this.basic = BASIC + Base64.getEncoder().encodeToString(basiccredentials);
+        this.secret = secret == null ? null : new SecretKeySpec(secret, HMAC);
+        this.cachesize = cachesize;
+    }
+
+    public static Authenticator create(Properties config, String token) {
+        String secret = config.getProperty("web.jwt.secret");
+        return new Authenticator(
+                token,
+                secret == null || secret.isEmpty() ? null : secret.getBytes(StandardCharsets.UTF_8),
+                Integer.parseInt(config.getProperty("web.jwt.cache", "1000")));
+    }
+
+    // The access granted to the request, or null if not authorized
+    public Grant authenticate(String authorization) {
+        if (authorization == null) {
+            return null;
+        }
+        if (equals(authorization, basic)) {
+            return ALL;
+        }
+        if (authorization.startsWith(BASIC)) {
+            return verifyBasic(authorization);
+        }
+        if (secret != null && authorization.startsWith(BEARER)) {
+            Grant grant = cache.get(authorization);
+            if (grant == null) {
+                grant = verifyBearer(authorization);
+                if (grant == null) {
+                    return null;
+                }
+                if (cache.size() >= cachesize) {
+                    // Any entry, the cache only saves signature checks
+                    Iterator<String> it = cache.keySet().iterator();
+                    if (it.hasNext()) {
+                        cache.remove(it.next());
+                    }
+                }
+                if (cachesize > 0) {
+                    cache.put(authorization, grant);
+                }
+            }
+            if (grant.isExpired()) {
+                cache.remove(authorization);
+                return null;
+            }
+            return grant;
+        }
+        return null;
+    }
+
+    private Grant verifyBasic(String authorization) {
+        // Same credentials with another valid base64 encoding, without padding
+        try {
+            byte[] credentials = Base64.getDecoder().decode(authorization.substring(BASIC.length()).trim());
+            return MessageDigest.isEqual(credentials, basiccredentials) ? ALL : null;
+        } catch (IllegalArgumentException ex) {
+            return null;
+        }
+    }
+
+    private Grant verifyBearer(String authorization) {
+        String token = authorization.substring(BEARER.length()).trim();
+        int first = token.indexOf('.');
+        int second = token.indexOf('.', first + 1);
+        if (first < 0 || second < 0 || token.indexOf('.', second + 1) >= 0) {
+            return null;
+        }
+        try {
+            Base64.Decoder decoder = Base64.getUrlDecoder();
+            JsonObject header = PARSER.parse(new String(decoder.decode(token.substring(0, first)), StandardCharsets.UTF_8)).getAsJsonObject();
+            JsonElement alg = header.get("alg");
+            if (alg == null || !"HS256".equals(alg.getAsString())) {
+                return null;
+            }
+
+            Mac mac = Mac.getInstance(HMAC);
+            mac.init(secret);
+            byte[] signature = mac.doFinal(token.substring(0, second).getBytes(StandardCharsets.US_ASCII));
+            if (!MessageDigest.isEqual(signature, decoder.decode(token.substring(second + 1)))) {
+                return null;
+            }
+
+            JsonObject claims = PARSER.parse(new String(decoder.decode(token.substring(first + 1, second)), StandardCharsets.UTF_8)).getAsJsonObject();
+            long expires = claims.has("exp") ? claims.get("exp").getAsLong() * 1000L : Long.MAX_VALUE;
+            if (claims.has("nbf") && System.currentTimeMillis() < claims.get("nbf").getAsLong() * 1000L) {
+                // Not valid yet, and not cached until it is
+                return null;
+            }
+            String subject = claims.has("sub") ? claims.get("sub").getAsString() : "";
+            TopicTrie<Boolean> topics = null;
+            if (claims.has("topics")) {
+                topics = new TopicTrie<>();
+                JsonArray scopes = claims.getAsJsonArray("topics");
+                for (JsonElement scope : scopes) {
+                    topics.add(scope.getAsString(), Boolean.TRUE);
+                }
+            }
+            Grant grant = new Grant(subject, topics, expires);
+            return grant.isExpired() ? null : grant;
+        } catch (IllegalArgumentException | IllegalStateException | UnsupportedOperationException | ClassCastException | JsonParseException | GeneralSecurityException ex) {
+            // Malformed token
+            return null;
+        }
+    }
+
+    // Constant time comparison, the time does not depend on the matching characters
+    private static boolean equals(String a, String b) {
+        if (a.length() != b.length()) {
+            return false;
+        }
+        int result = 0;
+        for (int i = 0; i < a.length(); i++) {
+            result |= a.charAt(i) ^ b.charAt(i);
+        }
+        return result == 0;
+    }
+
+    /**
+     * Access granted to an authorized client.
+     */
+    public static class Grant {
+
+        private static final BiConsumer<Boolean, boolean[]> FOUND = (value, found) -> found[0] = true;
+
+        private final String subject;
+        private final TopicTrie<Boolean> topics;
+        private final long expires;
+
+        Grant(String subject, TopicTrie<Boolean> topics, long expires) {
+            this.subject = subject;
+            this.topics = topics;
+            this.expires = expires;
+        }
+
+        public String getSubject() {
+            return subject;
+        }
+
+        public boolean isRestricted() {
+            return topics != null;
+        }
+
+        // Whether the topic matches one of the filters of the token
+        public boolean allows(String topic) {
+            if (topics == null) {
+                return true;
+            }
+            boolean[] found = new boolean[1];
+            topics.match(topic, FOUND, found);
+            return found[0];
+        }
+
+        boolean isExpired() {
+            return System.currentTimeMillis() >= expires;
+        }
+    }
+}
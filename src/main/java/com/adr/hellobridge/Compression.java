@@ -0,0 +1,111 @@
+//    HelloBridge is a bridge from HTTP to MQTT
+//    Copyright (C) 2019 Adrián Romero Corchado.
+//
+//    This file is part of HelloBridge.
+//
+//    HelloIot is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    HelloIot is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with HelloIot.  If not, see <http://www.gnu.org/licenses/>.
+//
+package com.adr.hellobridge;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * HTTP content encoding of message bodies. Webhook bodies are compressed
+ * when they reach a minimum size, smaller bodies are not worth it. Request
+ * bodies are decompressed streaming, and the caller limits the decompressed
+ * size.
+ *
+ * @author adrian
+ */
+public class Compression {
+
+    public static final String GZIP = "gzip";
+    public static final String DEFLATE = "deflate";
+    public static final String IDENTITY = "identity";
+
+    // No compression
+    public static final Compression NONE = new Compression(null, Integer.MAX_VALUE);
+
+    private final String encoding;
+    private final int minsize;
+
+    public Compression(String encoding, int minsize) {
+        this.encoding = encoding;
+        this.minsize = minsize;
+    }
+
+    public static Compression parse(String encoding, int minsize) {
+        if (encoding == null || encoding.isEmpty() || "none".equals(encoding) || IDENTITY.equals(encoding)) {
+            return NONE;
+        } else if (GZIP.equals(encoding) || DEFLATE.equals(encoding)) {
+            return new Compression(encoding, minsize);
+        } else {
+            throw new IllegalArgumentException("Unsupported compression: " + encoding);
+        }
+    }
+
+    // The Content-Encoding of the body, or null if not compressed
+    public String getEncoding(byte[] body) {
+        return encoding != null && body.length >= minsize ? encoding : null;
+    }
+
+    public byte[] encode(byte[] body) {
+        if (getEncoding(body) == null) {
+            return body;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, body.length / 4));
+        try (OutputStream z = GZIP.equals(encoding) ? new GZIPOutputStream(out, 8192) : new DeflaterOutputStream(out)) {
+            z.write(body);
+        } catch (IOException ex) {
+            // Not thrown writing to memory
+            throw new UncheckedIOException(ex);
+        }
+        return out.toByteArray();
+    }
+
+    public static boolean isEncoded(String contentencoding) {
+        return contentencoding != null && !contentencoding.isEmpty() && !IDENTITY.equalsIgnoreCase(contentencoding.trim());
+    }
+
+    public static InputStream decode(String contentencoding, InputStream in) throws IOException {
+        if (!isEncoded(contentencoding)) {
+            return in;
+        }
+        String e = contentencoding.trim().toLowerCase();
+        if (GZIP.equals(e) || "x-gzip".equals(e)) {
+            return new GZIPInputStream(in, 8192);
+        } else if (DEFLATE.equals(e)) {
+            return new InflaterInputStream(in);
+        } else {
+            throw new UnsupportedContentEncodingException(contentencoding);
+        }
+    }
+
+    public static class UnsupportedContentEncodingException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        public UnsupportedContentEncodingException(String encoding) {
+            super("Unsupported content encoding: " + encoding);
+        }
+    }
+}
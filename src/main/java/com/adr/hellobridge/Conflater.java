@@ -0,0 +1,69 @@
+//    HelloBridge is a bridge from HTTP to MQTT
+//    Copyright (C) 2019 Adrián Romero Corchado.
+//
+//    This file is part of HelloBridge.
+//
+//    HelloIot is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    HelloIot is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with HelloIot.  If not, see <http://www.gnu.org/licenses/>.
+//
+package com.adr.hellobridge;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Keeps only the latest message of each topic within a time window. The
+ * first message of a topic opens the window, and when it ends the latest
+ * message received in it is passed on.
+ *
+ * @author adrian
+ */
+public class Conflater {
+
+    private final long window;
+    private final ScheduledExecutorService scheduler;
+    private final Consumer<EventMessage> output;
+    private final Map<String, EventMessage> pending = new ConcurrentHashMap<>();
+
+    public Conflater(long window, ScheduledExecutorService scheduler, Consumer<EventMessage> output) {
+        this.window = window;
+        this.scheduler = scheduler;
+        this.output = output;
+    }
+
+    // Returns false if the message replaces a pending one
+    public boolean offer(EventMessage message) {
+        String topic = message.getTopic();
+        if (pending.put(topic, message) != null) {
+            return false;
+        }
+        scheduler.schedule(() -> flush(topic), window, TimeUnit.MILLISECONDS);
+        return true;
+    }
+
+    public void flushAll() {
+        for (String topic : pending.keySet()) {
+            flush(topic);
+        }
+    }
+
+    private void flush(String topic) {
+        EventMessage message = pending.remove(topic);
+        if (message != null) {
+            output.accept(message);
+        }
+    }
+}
@@ -0,0 +1,227 @@
+//    HelloBridge is a bridge from HTTP to MQTT
+//    Copyright (C) 2019 Adrián Romero Corchado.
+//
+//    This file is part of HelloBridge.
+//
+//    HelloIot is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    HelloIot is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with HelloIot.  If not, see <http://www.gnu.org/licenses/>.
+//
+package com.adr.hellobridge;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Bounded dispatch stage. Items are distributed by key into lanes, each lane
+ * is a bounded queue consumed by a single worker thread, so items with the
+ * same key are always processed in order. Workers hand items to the handler
+ * in batches of up to <code>batchsize</code> items, waiting at most
+ * <code>linger</code> milliseconds for a batch to fill.
+ *
+ * @author adrian
+ * @param <T> the type of the dispatched items
+ */
+public class DispatchQueue<T> {
+
+    private final static Logger logger = Logger.getLogger(DispatchQueue.class.getName());
+
+    public enum Backpressure {
+        BLOCK, DROP_OLDEST, DROP_NEWEST;
+
+        public static Backpressure parse(String value) {
+            switch (value.trim().toLowerCase()) {
+                case "block":
+                    return BLOCK;
+                case "dropoldest":
+                case "drop-oldest":
+                    return DROP_OLDEST;
+                case "dropnewest":
+                case "drop-newest":
+                    return DROP_NEWEST;
+                default:
+                    throw new IllegalArgumentException("Unknown backpressure policy: " + value);
+            }
+        }
+    }
+
+    private final String name;
+    private final Backpressure backpressure;
+    private final int batchsize;
+    private final long linger;
+    private final Consumer<List<T>> handler;
+    private final List<Lane> lanes;
+    private final AtomicLong dropped = new AtomicLong();
+
+    private volatile boolean closed = false;
+
+    public DispatchQueue(String name, int workers, int capacity, Backpressure backpressure, Consumer<List<T>> handler) {
+        this(name, workers, capacity, backpressure, 1, 0L, handler);
+    }
+
+    public DispatchQueue(String name, int workers, int capacity, Backpressure backpressure, int batchsize, long linger, Consumer<List<T>> handler) {
+        if (workers < 1) {
+            throw new IllegalArgumentException("Workers must be greater than zero: " + workers);
+        }
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be greater than zero: " + capacity);
+        }
+        if (batchsize < 1) {
+            throw new IllegalArgumentException("Batch size must be greater than zero: " + batchsize);
+        }
+        this.name = name;
+        this.backpressure = backpressure;
+        this.batchsize = batchsize;
+        this.linger = TimeUnit.MILLISECONDS.toNanos(linger);
+        this.handler = handler;
+        this.lanes = new ArrayList<>(workers);
+        for (int i = 0; i < workers; i++) {
+            lanes.add(new Lane(capacity));
+        }
+    }
+
+    public void start(Threads threads) {
+        for (int i = 0; i < lanes.size(); i++) {
+            Thread t = threads.newThread("hellobridge-dispatch-" + name + "-" + i, lanes.get(i));
+            lanes.get(i).thread = t;
+            t.start();
+        }
+    }
+
+    public boolean submit(String key, T item) {
+        if (closed) {
+            return false;
+        }
+        BlockingQueue<T> queue = lanes.get((key.hashCode() & 0x7fffffff) % lanes.size()).queue;
+        switch (backpressure) {
+            case DROP_NEWEST:
+                if (!queue.offer(item)) {
+                    drop();
+                    return false;
+                }
+                return true;
+            case DROP_OLDEST:
+                while (!queue.offer(item)) {
+                    if (queue.poll() != null) {
+                        drop();
+                    }
+                }
+                return true;
+            default: // BLOCK
+                try {
+                    queue.put(item);
+                    return true;
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+        }
+    }
+
+    public int size() {
+        int size = 0;
+        for (Lane lane : lanes) {
+            size += lane.queue.size();
+        }
+        return size;
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    public void close(long timeout) {
+        closed = true;
+        long deadline = System.currentTimeMillis() + timeout;
+        for (Lane lane : lanes) {
+            if (lane.thread != null) {
+                try {
+                    lane.thread.join(Math.max(1L, deadline - System.currentTimeMillis()));
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+        int pending = size();
+        if (pending > 0) {
+            logger.log(Level.WARNING, "Dispatch queue [{0}] closed with {1} pending items.", new Object[]{name, pending});
+        }
+    }
+
+    private void drop() {
+        long count = dropped.incrementAndGet();
+        logger.log(Level.FINE, () -> String.format("Dispatch queue [%s] full, dropped %d items.", name, count));
+    }
+
+    private class Lane implements Runnable {
+
+        private final BlockingQueue<T> queue;
+        private final List<T> batch = new ArrayList<>();
+        private Thread thread;
+
+        Lane(int capacity) {
+            queue = new ArrayBlockingQueue<>(capacity);
+        }
+
+        @Override
+        public void run() {
+            try {
+                for (;;) {
+                    T item = queue.poll(100L, TimeUnit.MILLISECONDS);
+                    if (item != null) {
+                        batch.add(item);
+                        fill();
+                        process();
+                    } else if (closed) {
+                        return;
+                    }
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void fill() throws InterruptedException {
+            long deadline = System.nanoTime() + linger;
+            while (batch.size() < batchsize) {
+                queue.drainTo(batch, batchsize - batch.size());
+                long wait = deadline - System.nanoTime();
+                if (batch.size() >= batchsize || wait <= 0L || closed) {
+                    return;
+                }
+                T item = queue.poll(wait, TimeUnit.NANOSECONDS);
+                if (item == null) {
+                    return;
+                }
+                batch.add(item);
+            }
+        }
+
+        private void process() {
+            try {
+                handler.accept(batch);
+            } catch (RuntimeException ex) {
+                logger.log(Level.WARNING, String.format("Dispatch queue [%s] failed to process items.", name), ex);
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+}
@@ -18,13 +18,23 @@
 //
 package com.adr.hellobridge;
 
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
+import java.io.File;
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
-import java.net.URLEncoder;
-import java.util.HashMap;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import okhttp3.MediaType;
@@ -41,86 +51,515 @@ public class GroupManagers {
     
     private static final Logger logger = Logger.getLogger(GroupManagers.class.getName());          
     private static final MediaType JSON = MediaType.parse("application/json; charset=utf-8");
+    private static final long CLOSE_TIMEOUT = 5000L;
     
-    private final String url;
-
-    private final OkHttpClient client = new OkHttpClient();
-    private final Map<String, SubscriptionDefinition> subscriptions = new HashMap<>();
+    private final OkHttpClient client;
+    // The last configuration loaded
+    private volatile Properties config;
+    private SubscriptionDefinition[] subs;
+    private final Map<String, WebhookEndpoint> endpoints = new ConcurrentHashMap<>();
+    // Replaced as a whole on reload, messages are routed without locking
+    private volatile Routes routes;
+    private final BiConsumer<Route, EventMessage> dispatch = this::dispatchMessage;
+    private final RetryLog retrylog;
+    private final Metrics metrics;
+    private final Threads threads;
+    private final Metrics.Histogram routinglatency;
+    // Default, also for deliveries in the retry log of removed subscriptions
+    private volatile Compression compression;
+    private StreamHub streams;
+    private ScheduledExecutorService conflation;
     
-    public GroupManagers(Properties config, SubscriptionDefinition[] subs) {
-        url = config.getProperty("webhook.url");
+    public GroupManagers(Properties config, SubscriptionDefinition[] subs, Metrics metrics, Threads threads) {
+        this.config = config;
+        this.subs = subs;
+        this.metrics = metrics;
+        this.threads = threads;
+        routinglatency = metrics.histogram("hellobridge_routing_seconds", "Time to route a received message to the dispatch queues.", Metrics.ROUTING_BUCKETS);
+        client = new OkHttpClient.Builder()
+                .connectTimeout(Long.parseLong(config.getProperty("webhook.timeout.connect.ms", "10000")), TimeUnit.MILLISECONDS)
+                .readTimeout(Long.parseLong(config.getProperty("webhook.timeout.read.ms", "10000")), TimeUnit.MILLISECONDS)
+                .writeTimeout(Long.parseLong(config.getProperty("webhook.timeout.write.ms", "10000")), TimeUnit.MILLISECONDS)
+                .callTimeout(Long.parseLong(config.getProperty("webhook.timeout.call.ms", "30000")), TimeUnit.MILLISECONDS)
+                .build();
+        
+        String retrydir = config.getProperty("webhook.retry.dir");
+        retrylog = retrydir == null ? null : new RetryLog(
+                new File(retrydir),
+                Integer.parseInt(config.getProperty("webhook.retry.segmentsize", "16777216")),
+                Integer.parseInt(config.getProperty("webhook.retry.maxsegments", "64")),
+                Long.parseLong(config.getProperty("webhook.retry.fsync.ms", "1000")),
+                Long.parseLong(config.getProperty("webhook.retry.backoff.ms", "1000")),
+                Long.parseLong(config.getProperty("webhook.retry.maxbackoff.ms", "60000")),
+                Integer.parseInt(config.getProperty("webhook.retry.maxattempts", "100")),
+                Long.parseLong(config.getProperty("webhook.retry.maxage.ms", "86400000")),
+                Integer.parseInt(config.getProperty("webhook.retry.window", "10000")),
+                this::retryDelivery);
+        if (retrylog != null) {
+            metrics.gauge("hellobridge_retry_pending", "Deliveries pending in the retry log.", retrylog::getPending);
+        }
         
+        compression = getCompression(config);
+        routes = createRoutes(config, subs, null);
+        for (Route route : routes.list) {
+            route.registerMetrics(metrics);
+        }
+    }
+    
+    // Creates the routes of the subscriptions, reusing the previous routes whose configuration has not changed
+    private Routes createRoutes(Properties config, SubscriptionDefinition[] subs, Routes previous) {
+        checkOverlaps(subs);
+        String url = config.getProperty("webhook.url");
+        WebhookTemplate webhook = url == null ? null : new WebhookTemplate(url);
+        
+        List<Route> list = new ArrayList<>();
+        TopicTrie<Route> trie = new TopicTrie<>();
         for (SubscriptionDefinition sub : subs) {
-            subscriptions.put(sub.getTopic(), sub);
-        }     
+            Map<String, String> settings = getSettings(config, sub.getName());
+            Route route = previous == null ? null : previous.get(sub.getName());
+            if (route == null || !route.settings.equals(settings)) {
+                route = createRoute(config, webhook, sub, settings);
+            }
+            list.add(route);
+            trie.add(sub.getTopic(), route);
+        }
+        return new Routes(list, trie);
+    }
+    
+    private static void checkOverlaps(SubscriptionDefinition[] subs) {
+        // A message matching broker subscriptions of different share groups is received once
+        // for each of them, and would be routed to every matching subscription each time
+        for (int i = 0; i < subs.length; i++) {
+            for (int j = i + 1; j < subs.length; j++) {
+                SubscriptionDefinition a = subs[i];
+                SubscriptionDefinition b = subs[j];
+                if ((a.getShare() != null || b.getShare() != null)
+                        && !a.getSubscribeTopic().equals(b.getSubscribeTopic())
+                        && TopicTrie.overlaps(a.getTopic(), b.getTopic())) {
+                    throw new IllegalArgumentException(String.format("Overlapping topic filters must have the same shared subscription group: %s (%s), %s (%s)",
+                            a.getName(), a.getSubscribeTopic(), b.getName(), b.getSubscribeTopic()));
+                }
+            }
+        }
+    }
+
+    private Route createRoute(Properties config, WebhookTemplate webhook, SubscriptionDefinition sub, Map<String, String> settings) {
+        String prefix = "mqtt.topic." + sub.getName();
+        int workers = Integer.parseInt(config.getProperty("webhook.workers", "1"));
+        int capacity = Integer.parseInt(config.getProperty("webhook.queue", "1000"));
+        String backpressure = config.getProperty("webhook.backpressure", "block");
+        String compress = config.getProperty("webhook.compress", "none");
+        String compressmin = config.getProperty("webhook.compress.minsize", "1024");
+        
+        int batchsize = Integer.parseInt(config.getProperty(prefix + ".batch.size", "1"));
+        String subbackpressure = config.getProperty(prefix + ".backpressure", backpressure);
+        // Spill stores messages that do not fit in the queue in the retry log
+        boolean spill = "spill".equals(subbackpressure);
+        if (spill && retrylog == null) {
+            throw new IllegalArgumentException("Backpressure policy [spill] requires configuration property [webhook.retry.dir]: " + sub.getName());
+        }
+        Route route = new Route(sub, getWebhook(config, webhook, sub).bind(sub), batchsize > 1, spill, settings);
+        route.filter = MessageFilter.create(config, prefix);
+        route.compression = Compression.parse(
+                config.getProperty(prefix + ".compress", compress),
+                Integer.parseInt(config.getProperty(prefix + ".compress.minsize", compressmin)));
+        // Conflation and rate limits are disabled by default
+        long conflate = Long.parseLong(config.getProperty(prefix + ".conflate.ms", "0"));
+        if (conflate > 0L) {
+            if (conflation == null) {
+                conflation = Threads.newScheduler("hellobridge-conflation");
+            }
+            route.conflater = new Conflater(conflate, conflation, message -> submitMessage(route, message));
+        }
+        double rate = Double.parseDouble(config.getProperty(prefix + ".rate", "0"));
+        if (rate > 0.0) {
+            route.limiter = new TokenBucket(rate, Integer.parseInt(config.getProperty(prefix + ".rate.burst", Integer.toString((int) Math.ceil(rate)))));
+        }
+        route.dispatcher = new DispatchQueue<>(
+                sub.getName(),
+                Integer.parseInt(config.getProperty(prefix + ".workers", Integer.toString(workers))),
+                Integer.parseInt(config.getProperty(prefix + ".queue", Integer.toString(capacity))),
+                spill ? DispatchQueue.Backpressure.DROP_NEWEST : DispatchQueue.Backpressure.parse(subbackpressure),
+                batchsize,
+                Long.parseLong(config.getProperty(prefix + ".batch.linger.ms", "100")),
+                messages -> deliverMessages(route, messages));
+        return route;
+    }
+    
+    private static Map<String, String> getSettings(Properties config, String name) {
+        // A route is replaced on reload when any of these properties change
+        String prefix = "mqtt.topic." + name;
+        Map<String, String> settings = new TreeMap<>();
+        for (String key : config.stringPropertyNames()) {
+            if (key.equals(prefix) || key.startsWith(prefix + ".") || key.startsWith("webhook.") || key.equals("mqtt.share")) {
+                settings.put(key, config.getProperty(key));
+            }
+        }
+        return settings;
+    }
+    
+    private static Compression getCompression(Properties config) {
+        return Compression.parse(
+                config.getProperty("webhook.compress", "none"),
+                Integer.parseInt(config.getProperty("webhook.compress.minsize", "1024")));
+    }
+    
+    private WebhookTemplate getWebhook(Properties config, WebhookTemplate webhook, SubscriptionDefinition sub) {
+        String suburl = config.getProperty("mqtt.topic." + sub.getName() + ".webhook.url");
+        if (suburl != null) {
+            return new WebhookTemplate(suburl);
+        }
+        if (webhook == null) {
+            throw new IllegalArgumentException("Configuration property [webhook.url] is required by subscription: " + sub.getName());
+        }
+        return webhook;
+    }
+    
+    public void registerStreams(StreamHub streams) {
+        this.streams = streams;
+    }
+    
+    public void start() {
+        if (retrylog != null) {
+            try {
+                retrylog.open();
+            } catch (IOException ex) {
+                throw new RuntimeException("Retry log cannot be opened.", ex);
+            }
+        }
+        for (Route route : routes.list) {
+            route.dispatcher.start(threads);
+        }
+    }
+    
+    /**
+     * Applies a new configuration of the subscriptions. Routes of new and
+     * changed subscriptions are created and started, then the routing table
+     * is replaced, and then the routes not used anymore deliver their queued
+     * messages and stop. Messages are routed during the reload without
+     * waiting.
+     */
+    public synchronized void reload(Properties config, SubscriptionDefinition[] subs) {
+        Routes previous = routes;
+        Routes next = createRoutes(config, subs, previous);
+        Compression nextcompression = getCompression(config);
+
+        List<Route> removed = new ArrayList<>();
+        for (Route route : previous.list) {
+            if (!next.list.contains(route)) {
+                route.unregisterMetrics(metrics);
+                removed.add(route);
+            }
+        }
+        int added = 0;
+        for (Route route : next.list) {
+            if (!previous.list.contains(route)) {
+                route.registerMetrics(metrics);
+                route.dispatcher.start(threads);
+                added++;
+            }
+        }
+
+        this.config = config;
+        this.subs = subs;
+        compression = nextcompression;
+        for (WebhookEndpoint endpoint : endpoints.values()) {
+            endpoint.configure(config);
+        }
+        routes = next;
+
+        for (Route route : removed) {
+            closeRoute(route);
+        }
+        logger.log(Level.INFO, "Subscriptions reloaded, {0} started, {1} stopped, {2} unchanged.", new Object[]{added, removed.size(), next.list.size() - added});
+    }
+    
+    public synchronized Properties getConfig() {
+        return config;
+    }
+    
+    public synchronized SubscriptionDefinition[] getSubscriptions() {
+        return subs;
+    }
+    
+    private static void closeRoute(Route route) {
+        // Deliver the messages waiting for the end of the conflation window
+        if (route.conflater != null) {
+            route.conflater.flushAll();
+        }
+        route.dispatcher.close(CLOSE_TIMEOUT);
+    }
+    
+    public void close() {
+        if (conflation != null) {
+            conflation.shutdownNow();
+        }
+        for (Route route : routes.list) {
+            closeRoute(route);
+        }
+        if (retrylog != null) {
+            retrylog.close();
+        }
     }
     
     public void distributeMessage(EventMessage message) {
-        distributeWilcardMessage(message.getTopic(), message);
-        distributeRecursiveMessage(message.getTopic().length() - 1, message);
-    }    
-    
-    private void distributeRecursiveMessage(int starting, EventMessage message) {
-        String topic = message.getTopic();
-        int i = topic.lastIndexOf('/', starting);
-        if (i < 0) {
-            distributeWilcardMessage("#", message);
+        long start = System.nanoTime();
+        routes.trie.match(message.getTopic(), dispatch, message);
+        if (streams != null) {
+            streams.distribute(message);
+        }
+        routinglatency.recordSince(start);
+    }
+
+    private void dispatchMessage(Route route, EventMessage message) {
+        if (route.filter != null) {
+            message = route.filter.apply(message);
+            if (message == null) {
+                route.filtered.inc();
+                return;
+            }
+        }
+        if (route.conflater != null) {
+            if (!route.conflater.offer(message)) {
+                route.conflated.inc();
+            }
         } else {
-            distributeWilcardMessage(topic.substring(0, i) + "/#", message);
-            distributeRecursiveMessage(i - 1, message);
+            submitMessage(route, message);
         }
     }
 
-    private void distributeWilcardMessage(String subscriptiontopic, EventMessage message) {
-        
-        SubscriptionDefinition sub = subscriptions.get(subscriptiontopic);
-        if (sub == null) {
-            logger.log(Level.CONFIG, () -> "Discarded subscription topic: " + subscriptiontopic);
+    private void submitMessage(Route route, EventMessage message) {
+        if (route.limiter != null && !route.limiter.tryAcquire()) {
+            route.ratelimited.inc();
             return;
         }
+        if (route.dispatcher.submit(message.getTopic(), message)) {
+            queued(route, message);
+        } else if (route.spill) {
+            if (storeMessages(route, Collections.singletonList(message))) {
+                queued(route, message);
+            }
+        } else {
+            logger.log(Level.FINE, () -> "Message not queued for topic: " + message.getTopic());
+        }
+    }
+    
+    private static void queued(Route route, EventMessage message) {
+        // Changes and deadbands compare with the messages actually queued
+        if (route.filter != null) {
+            route.filter.queued(message);
+        }
+    }
 
-        try {
-            String weburl = url
-                    .replace("{{subscription}}", sub.getName())
-                    .replace("{{topic}}", URLEncoder.encode(message.getTopic(), "UTF-8"))
-                    .replace("{{topicplain}}", message.getTopic())
-                    .replace("{{subscription}}", sub.getName())
-                    .replace("{{subscriptiontopic}}", URLEncoder.encode(subscriptiontopic, "UTF-8"))
-                    .replace("{{subscriptiontopicplain}}", subscriptiontopic);
+    private void deliverMessages(Route route, List<EventMessage> messages) {
+        for (Map.Entry<String, List<EventMessage>> batch : groupByURL(route, messages).entrySet()) {
+            deliverBatch(route, batch.getKey(), batch.getValue());
+        }
+    }
+    
+    private void deliverBatch(Route route, String weburl, List<EventMessage> messages) {
+        
+        byte[] body = renderBody(route, messages);
+        
+        long start = System.nanoTime();
+        int code = post(route.sub.getTopic(), weburl, body, messages.size(), route.compression);
+        route.latency.recordSince(start);
+        if (isRetryable(code)) {
+            route.failures.inc();
+            if (retrylog != null) {
+                retrylog.append(route.sub.getName(), weburl, body);
+            }
+        } else {
+            route.deliveries.inc();
+        }
+    }
+    
+    private boolean storeMessages(Route route, List<EventMessage> messages) {
+        boolean stored = true;
+        for (Map.Entry<String, List<EventMessage>> batch : groupByURL(route, messages).entrySet()) {
+            if (!retrylog.append(route.sub.getName(), batch.getKey(), renderBody(route, batch.getValue()))) {
+                logger.log(Level.WARNING, () -> "Message discarded for subscription: " + route.sub.getName());
+                stored = false;
+            }
+        }
+        return stored;
+    }
+    
+    private boolean retryDelivery(RetryLog.Entry entry) {
+        // Entries that cannot be retried are also removed from the log
+        Route route = routes.get(entry.getSubscription());
+        if (route == null) {
+            logger.log(Level.WARNING, () -> String.format("Delivery discarded for: %s. Subscription removed.", entry.getSubscription()));
+            return true;
+        }
+        int code = post(entry.getSubscription(), entry.getUrl(), entry.getBody(), 1, route.compression);
+        if (code >= 400 && !isRetryable(code)) {
+            logger.log(Level.WARNING, () -> String.format("Delivery discarded for: %s. Server returned: %s.", entry.getSubscription(), code));
+        }
+        return !isRetryable(code);
+    }
+    
+    private static boolean isRetryable(int code) {
+        // Network errors, server errors and too many requests
+        return code < 0 || code >= 500 || code == 429;
+    }
+    
+    private static Map<String, List<EventMessage>> groupByURL(Route route, List<EventMessage> messages) {
+        if (!route.webhook.hasTopic()) {
+            return Collections.singletonMap(route.webhook.render(null), messages);
+        }
+        // With topic placeholders a batch is posted to each URL, keeping the order of each topic
+        Map<String, List<EventMessage>> batches = new LinkedHashMap<>();
+        for (EventMessage m : messages) {
+            batches.computeIfAbsent(route.webhook.render(m.getTopic()), url -> new ArrayList<>()).add(m);
+        }
+        return batches;
+    }
+    
+    private static byte[] renderBody(Route route, List<EventMessage> messages) {
+        JsonElement result;
+        if (route.batch) {
+            JsonArray items = new JsonArray(messages.size());
+            for (EventMessage m : messages) {
+                items.add(formatJSON(route.sub, m));
+            }
+            result = items;
+        } else {
+            result = formatJSON(route.sub, messages.get(0));
+        }
+        return result.toString().getBytes(StandardCharsets.UTF_8);
+    }
 
-            
-            JsonObject result = new JsonObject();
-            result.addProperty("topic", message.getTopic());
-            result.addProperty("message", SubscriptionDefinition.formatMessage(message.getMessage(), sub.getFormat()));
-            if (message.getQoS() > 0) {
-                result.addProperty("qos", message.getQoS());
-            }
-            if (message.isRetained()) {
-                result.addProperty("retained", true);
-            }
-            
-            logger.log(Level.CONFIG, () -> String.format("Subscription topic command: %s -> %s ", weburl, result.toString()));
+    private int post(String subscription, String weburl, byte[] content, int count, Compression compression) {
+        
+        logger.log(Level.CONFIG, () -> String.format("Subscription topic command: %s -> %s ", weburl, new String(content, StandardCharsets.UTF_8)));
 
-            RequestBody body = RequestBody.create(JSON, result.toString());
-            Request request = new Request.Builder()
-                    .url(weburl)
-                    .post(body)
-                    .build();
-            try (Response response = client.newCall(request).execute()) {
-                if (response.isSuccessful()) {
-                    logger.log(Level.INFO, () -> "Subscription notified for: " + subscriptiontopic);
-                } else {
-                    logger.log(Level.WARNING, () -> String.format("Subscription cannot be notified for: %s. Server returned: %s.", subscriptiontopic, response.code()));
+        // Compressed when sent, the retry log keeps the plain body
+        String encoding = compression.getEncoding(content);
+        Request.Builder builder = new Request.Builder()
+                .url(weburl)
+                .post(RequestBody.create(JSON, compression.encode(content)));
+        if (encoding != null) {
+            builder.header("Content-Encoding", encoding);
+        }
+        Request request = builder.build();
+        
+        // Wait a bounded time while the host is saturated, fail fast if it is failing
+        WebhookEndpoint endpoint = endpoints.computeIfAbsent(
+                request.url().host() + ":" + request.url().port(),
+                host -> WebhookEndpoint.create(host, config));
+        try {
+            if (!endpoint.acquire()) {
+                logger.log(Level.FINE, () -> String.format("Subscription not notified for: %s. Host unavailable or saturated: %s.", subscription, endpoint.getHost()));
+                return -1;
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            logger.log(Level.WARNING, () -> String.format("Subscription not notified for: %s. Interrupted.", subscription));
+            return -1;
+        }
+        
+        int code = -1;
+        try (Response response = client.newCall(request).execute()) {
+            code = response.code();
+            if (response.isSuccessful()) {
+                logger.log(Level.INFO, () -> String.format("Subscription notified for: %s. Messages: %d.", subscription, count));
+            } else {
+                logger.log(Level.WARNING, () -> String.format("Subscription cannot be notified for: %s. Server returned: %s.", subscription, response.code()));
+            }
+            String responsebody = response.body().string();  
+            logger.log(Level.INFO, () -> "Notification returns body: " + responsebody);                
+            return code;
+        } catch (IOException ex) {
+            logger.log(Level.WARNING, String.format("Subscription failed for: %s.", subscription), ex);
+            return -1;
+        } finally {
+            endpoint.release(!isRetryable(code));
+        }
+    }
+    
+    private static JsonObject formatJSON(SubscriptionDefinition sub, EventMessage message) {
+        JsonObject result = new JsonObject();
+        result.addProperty("topic", message.getTopic());
+        result.addProperty("message", SubscriptionDefinition.formatMessage(message.getMessage(), sub.getFormat()));
+        if (message.getQoS() > 0) {
+            result.addProperty("qos", message.getQoS());
+        }
+        if (message.isRetained()) {
+            result.addProperty("retained", true);
+        }
+        return result;
+    }
+    
+    private static class Routes {
+        
+        private final List<Route> list;
+        private final TopicTrie<Route> trie;
+        
+        Routes(List<Route> list, TopicTrie<Route> trie) {
+            this.list = list;
+            this.trie = trie;
+        }
+        
+        Route get(String name) {
+            for (Route route : list) {
+                if (route.sub.getName().equals(name)) {
+                    return route;
                 }
-                String responsebody = response.body().string();  
-                logger.log(Level.INFO, () -> "Notification returns body: " + responsebody);                
-            } catch (IOException ex) {
-                logger.log(Level.WARNING, String.format("Subscription failed for: %s.", subscriptiontopic), ex);
             }
-       
-        } catch (UnsupportedEncodingException ex) {
-            throw new RuntimeException(ex);
+            return null;
+        }
+    }
+    
+    private static class Route {
+        
+        private final SubscriptionDefinition sub;
+        private final Map<String, String> settings;
+        private final WebhookTemplate.Bound webhook;
+        private final boolean batch;
+        private final boolean spill;
+        private DispatchQueue<EventMessage> dispatcher;
+        private MessageFilter filter;
+        private Compression compression;
+        private Conflater conflater;
+        private TokenBucket limiter;
+        private Metrics.Histogram latency;
+        private Metrics.Counter deliveries;
+        private Metrics.Counter failures;
+        private Metrics.Counter filtered;
+        private Metrics.Counter conflated;
+        private Metrics.Counter ratelimited;
+        
+        Route(SubscriptionDefinition sub, WebhookTemplate.Bound webhook, boolean batch, boolean spill, Map<String, String> settings) {
+            this.sub = sub;
+            this.settings = settings;
+            this.webhook = webhook;
+            this.batch = batch;
+            this.spill = spill;
+        }
+        
+        void registerMetrics(Metrics metrics) {
+            String name = sub.getName();
+            latency = metrics.histogram("hellobridge_webhook_seconds", "Webhook round-trip time.", Metrics.WEBHOOK_BUCKETS, "subscription", name);
+            deliveries = metrics.counter("hellobridge_webhook_requests_total", "Webhook requests.", "subscription", name, "result", "success");
+            failures = metrics.counter("hellobridge_webhook_requests_total", "Webhook requests.", "subscription", name, "result", "failure");
+            filtered = metrics.counter("hellobridge_suppressed_total", "Messages not delivered by filters, conflation or rate limits.", "subscription", name, "reason", "filtered");
+            conflated = metrics.counter("hellobridge_suppressed_total", "Messages not delivered by filters, conflation or rate limits.", "subscription", name, "reason", "conflated");
+            ratelimited = metrics.counter("hellobridge_suppressed_total", "Messages not delivered by filters, conflation or rate limits.", "subscription", name, "reason", "ratelimited");
+            metrics.gauge("hellobridge_dispatch_queue_depth", "Messages waiting in the dispatch queue.", dispatcher::size, "subscription", name);
+            metrics.counter("hellobridge_dispatch_dropped_total", "Messages that did not fit in the dispatch queue.", dispatcher::getDropped, "subscription", name);
+        }
+        
+        void unregisterMetrics(Metrics metrics) {
+            String name = sub.getName();
+            metrics.remove("hellobridge_webhook_seconds", "subscription", name);
+            metrics.remove("hellobridge_webhook_requests_total", "subscription", name, "result", "success");
+            metrics.remove("hellobridge_webhook_requests_total", "subscription", name, "result", "failure");
+            metrics.remove("hellobridge_suppressed_total", "subscription", name, "reason", "filtered");
+            metrics.remove("hellobridge_suppressed_total", "subscription", name, "reason", "conflated");
+            metrics.remove("hellobridge_suppressed_total", "subscription", name, "reason", "ratelimited");
+            metrics.remove("hellobridge_dispatch_queue_depth", "subscription", name);
+            metrics.remove("hellobridge_dispatch_dropped_total", "subscription", name);
         }
     }
 }
-
@@ -0,0 +1,241 @@
+//    HelloBridge is a bridge from HTTP to MQTT
+//    Copyright (C) 2019 Adrián Romero Corchado.
+//
+//    This file is part of HelloBridge.
+//
+//    HelloIot is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    HelloIot is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with HelloIot.  If not, see <http://www.gnu.org/licenses/>.
+//
+package com.adr.hellobridge;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+
+/**
+ * Last message received on each subscribed topic. Reads are lock free. The
+ * topics least recently updated are evicted when the cache is full or when
+ * they are older than the time to live. A message with an empty payload
+ * removes its topic, as it deletes the retained message in the broker.
+ *
+ * Long poll requests wait on their topic filter, and only the filters that
+ * match the topic changed are woken up.
+ *
+ * @author adrian
+ */
+public class LastValueCache {
+
+    private final int maxsize;
+    private final long ttl;
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    // Update order, only used by writers
+    private final LinkedHashMap<String, Entry> order = new LinkedHashMap<>();
+    // Changed only while holding the order lock
+    private final AtomicLong version = new AtomicLong();
+
+    private static final BiConsumer<Waiters, Long> SIGNAL = Waiters::signal;
+    // Waiters by filter, and a trie of their filters replaced when they change, null if none
+    private final Map<String, Waiters> waiters = new HashMap<>();
+    private volatile TopicTrie<Waiters> waitertrie = null;
+
+    public LastValueCache(int maxsize, long ttl) {
+        this.maxsize = maxsize;
+        this.ttl = TimeUnit.MILLISECONDS.toNanos(ttl);
+    }
+
+    public void put(EventMessage message) {
+        if (message.getMessage().length == 0) {
+            remove(message.getTopic());
+            return;
+        }
+        Entry entry;
+        synchronized (order) {
+            // The version is published after the entry, so a reader that sees it also sees the entry
+            entry = new Entry(message, version.get() + 1L, System.nanoTime(), System.currentTimeMillis());
+            order.remove(message.getTopic());
+            order.put(message.getTopic(), entry);
+            entries.put(message.getTopic(), entry);
+            Iterator<Entry> it = order.values().iterator();
+            while (it.hasNext()) {
+                Entry eldest = it.next();
+                if (order.size() <= maxsize && !isExpired(eldest, entry.nanos)) {
+                    break;
+                }
+                it.remove();
+                entries.remove(eldest.message.getTopic(), eldest);
+            }
+            version.set(entry.version);
+        }
+        signal(message.getTopic(), entry.version);
+    }
+
+    private void remove(String topic) {
+        long removed;
+        synchronized (order) {
+            if (order.remove(topic) == null) {
+                return;
+            }
+            entries.remove(topic);
+            removed = version.incrementAndGet();
+        }
+        signal(topic, removed);
+    }
+
+    private void signal(String topic, long changed) {
+        TopicTrie<Waiters> trie = waitertrie;
+        if (trie != null) {
+            trie.match(topic, SIGNAL, changed);
+        }
+    }
+
+    public Entry get(String topic) {
+        Entry entry = entries.get(topic);
+        return entry == null || isExpired(entry, System.nanoTime()) ? null : entry;
+    }
+
+    public List<Entry> match(String filter) {
+        TopicTrie<String> trie = new TopicTrie<>();
+        trie.add(filter, filter);
+        List<Entry> result = new ArrayList<>();
+        long now = System.nanoTime();
+        for (Entry entry : entries.values()) {
+            if (!isExpired(entry, now)) {
+                trie.match(entry.message.getTopic(), (f, e) -> result.add(e), entry);
+            }
+        }
+        result.sort((a, b) -> a.message.getTopic().compareTo(b.message.getTopic()));
+        return result;
+    }
+
+    public long getVersion() {
+        return version.get();
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    // Waits until a topic matching the filter changes after the given version, returns false on timeout
+    public boolean await(String filter, long since, long timeout) throws InterruptedException {
+        Waiters w;
+        synchronized (waiters) {
+            w = waiters.get(filter);
+            if (w == null) {
+                w = new Waiters();
+                waiters.put(filter, w);
+                updateWaiterTrie();
+            }
+            w.count++;
+        }
+        try {
+            // Changed before registering, the caller checks again
+            return version.get() != since || w.await(since, TimeUnit.MILLISECONDS.toNanos(timeout));
+        } finally {
+            synchronized (waiters) {
+                if (--w.count == 0) {
+                    waiters.remove(filter);
+                    updateWaiterTrie();
+                }
+            }
+        }
+    }
+
+    private void updateWaiterTrie() {
+        if (waiters.isEmpty()) {
+            waitertrie = null;
+        } else {
+            TopicTrie<Waiters> trie = new TopicTrie<>();
+            for (Map.Entry<String, Waiters> e : waiters.entrySet()) {
+                trie.add(e.getKey(), e.getValue());
+            }
+            waitertrie = trie;
+        }
+    }
+
+    private boolean isExpired(Entry entry, long now) {
+        return ttl > 0L && now - entry.nanos > ttl;
+    }
+
+    // Lock and condition instead of monitors, waiting virtual threads do not pin their carrier
+    private static class Waiters {
+
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition changed = lock.newCondition();
+        // Guarded by the waiters map
+        private int count = 0;
+        private long version = 0L;
+
+        void signal(long changedversion) {
+            lock.lock();
+            try {
+                version = Math.max(version, changedversion);
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        boolean await(long since, long timeout) throws InterruptedException {
+            lock.lock();
+            try {
+                long remaining = timeout;
+                while (version <= since && remaining > 0L) {
+                    remaining = changed.awaitNanos(remaining);
+                }
+                return version > since;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * A cached message and the cache version when it was received.
+     */
+    public static class Entry {
+
+        private final EventMessage message;
+        private final long version;
+        private final long nanos;
+        private final long updated;
+
+        Entry(EventMessage message, long version, long nanos, long updated) {
+            this.message = message;
+            this.version = version;
+            this.nanos = nanos;
+            this.updated = updated;
+        }
+
+        public EventMessage getMessage() {
+            return message;
+        }
+
+        public long getVersion() {
+            return version;
+        }
+
+        public long getUpdated() {
+            return updated;
+        }
+    }
+}
@@ -18,28 +18,47 @@
 //
 package com.adr.hellobridge;
 
-import com.google.gson.JsonIOException;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
-import com.google.gson.JsonSyntaxException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
 import java.io.File;
 
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
 import java.security.SecureRandom;
 import java.util.ArrayList;
-import java.util.Base64;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import javax.servlet.http.HttpServletResponse;
+import org.eclipse.paho.client.mqttv3.DisconnectedBufferOptions;
+import org.eclipse.paho.client.mqttv3.MqttClientPersistence;
 import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
 import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
 import spark.Request;
 import spark.Response;
 import spark.Service;
+import spark.embeddedserver.EmbeddedServers;
+import spark.embeddedserver.jetty.EmbeddedJettyFactory;
 import spark.utils.SparkUtils;
 
 /**
@@ -49,6 +68,11 @@ import spark.utils.SparkUtils;
 public class Main {
 
     private final static Logger logger = Logger.getLogger(Main.class.getName());
+
+    // Default of web.threads.max with virtual threads, each request holds a virtual thread only
+    private final static int VIRTUAL_WEB_THREADS = 10000;
+    // Request attribute with the access granted by the Authorization header
+    private final static String GRANT = "hellobridge.grant";
     
     public static void main(String[] args) {
 
@@ -59,13 +83,39 @@ public class Main {
             configfile = new File(System.getProperty("user.home"), "hellobridge.properties");
         }
 
-        Properties config = getConfig(configfile);
+        start(getConfig(configfile), configfile);
+    }
+
+    public static Service start(Properties config) {
+        return start(config, null);
+    }
+
+    // With a configuration file, subscriptions can be reloaded from it without restarting
+    public static Service start(Properties config, File configfile) {
         
         SubscriptionDefinition[] subs = getSubscriptions(config);
-        GroupManagers groups = new GroupManagers(config, subs);
+        Metrics metrics = new Metrics();
+        Metrics.Histogram bulklatency = metrics.histogram("hellobridge_http_publish_seconds", "Time to handle HTTP publish requests.", Metrics.REQUEST_BUCKETS, "route", "bulk");
+        Metrics.Histogram publishlatency = metrics.histogram("hellobridge_http_publish_seconds", "Time to handle HTTP publish requests.", Metrics.REQUEST_BUCKETS, "route", "single");
+        Metrics.Counter publishmessages = metrics.counter("hellobridge_http_publish_messages_total", "Messages received by HTTP publish requests.");
+        
+        // Virtual threads for HTTP requests, webhook calls and streams, when enabled
+        Threads threads = Threads.create(config);
+        GroupManagers groups = new GroupManagers(config, subs, metrics, threads);
+        groups.start();
         
-        ManagerMQTT manager = createManagerMQTT(config, subs);
+        ManagerMQTT manager = createManagerMQTT(config, subs, metrics);
         manager.registerTopicsManager(groups);
+        
+        // Registered before connecting to also keep the retained messages
+        int cachesize = Integer.parseInt(config.getProperty("cache.size", "0"));
+        long cachemaxwait = Long.parseLong(config.getProperty("cache.maxwait.ms", "30000"));
+        LastValueCache cache = cachesize > 0 ? new LastValueCache(cachesize, Long.parseLong(config.getProperty("cache.ttl.ms", "0"))) : null;
+        if (cache != null) {
+            manager.registerCache(cache);
+            metrics.gauge("hellobridge_cache_topics", "Topics in the last value cache.", cache::size);
+        }
+        
         try {
             manager.connect();
         } catch (MqttException ex) {
@@ -74,15 +124,152 @@ public class Main {
         }
 
         int port = Integer.parseInt(config.getProperty("web.port", "8080"));
+        long maxbodysize = Long.parseLong(config.getProperty("web.maxbodysize", "1048576"));
+        boolean waitack = "delivery".equals(config.getProperty("web.ack", "none"));
+        long acktimeout = Long.parseLong(config.getProperty("web.acktimeout", "5000"));
+        int webthreads = Integer.parseInt(config.getProperty("web.threads.max", "0"));
         String token = config.getProperty("web.token", "HELLOBRIDGE");
         if (token.equals("HELLOBRIDGE")) {
             logger.warning("Using default security token, please change it in configuration property [web.token].");
         }
+        Authenticator authenticator = Authenticator.create(config, token);
+
+        StreamHub streams = new StreamHub(Integer.parseInt(config.getProperty("stream.queue", "1000")), metrics);
+        long heartbeat = Long.parseLong(config.getProperty("stream.heartbeat.ms", "15000"));
+        groups.registerStreams(streams);
 
+        if (threads.isVirtual()) {
+            // Replaces the servers of all the Spark services of the JVM, with a virtual thread pool each
+            EmbeddedServers.add(EmbeddedServers.Identifiers.JETTY, new EmbeddedJettyFactory(new VirtualThreadPool.ServerFactory(threads, VIRTUAL_WEB_THREADS)));
+        }
         Service s = Service.ignite();
         s.port(port);
+        if (webthreads > 0) {
+            s.threadPool(webthreads);
+        }
+        
+        // Web sockets must be registered before the routes
+        s.webSocket("/$websocket", new StreamSocket(streams, authenticator, threads, heartbeat));
+        
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            s.stop();
+            manager.disconnect();
+            groups.close();
+        }));
+
+        // Registered before "/*" so it is not taken as a topic, topics starting with '$' are reserved
+        s.get("/metrics", (Request request, Response response) -> {
+            // Metrics name every subscription and topic, restricted tokens only see their topics
+            if (getGrant(request).isRestricted()) {
+                response.type("application/json");
+                return error(response, 403, "Not allowed to read the metrics."); // FORBIDDEN
+            }
+            StringBuilder out = new StringBuilder();
+            metrics.write(out);
+            response.type("text/plain; version=0.0.4; charset=utf-8");
+            return out.toString();
+        });
+        
+        s.get("/$stream", (Request request, Response response) -> stream(streams, heartbeat, getGrant(request), request, response));
+        
+        if (cache != null) {
+            // Registered after "/metrics" and "/$stream", the other paths are topic filters
+            s.get("/*", (Request request, Response response) -> readCache(cache, cachemaxwait, getGrant(request), request, response));
+        }
+
+        if (configfile != null) {
+            s.post("/$reload", (Request request, Response response) -> {
+                response.type("application/json");
+                if (getGrant(request).isRestricted()) {
+                    return error(response, 403, "Not allowed to reload the configuration."); // FORBIDDEN
+                }
+                try {
+                    reload(configfile, groups, manager);
+                } catch (IllegalArgumentException ex) {
+                    logger.log(Level.WARNING, "Invalid configuration, not reloaded.", ex);
+                    return error(response, 400, "Invalid configuration. " + ex.getMessage()); // BAD_REQUEST
+                } catch (MqttException ex) {
+                    logger.log(Level.WARNING, "Cannot update MQTT subscriptions.", ex);
+                    return error(response, 500, "Cannot update MQTT subscriptions."); // Internal error
+                }
+                JsonObject result = new JsonObject();
+                result.addProperty("success", true);
+                result.addProperty("message", "Configuration reloaded.");
+                return result.toString();
+            });
+            
+            long watch = Long.parseLong(config.getProperty("config.watch.ms", "0"));
+            if (watch > 0L) {
+                watchConfig(configfile, watch, groups, manager);
+            }
+        }
+
+        s.post("/$bulk", (Request request, Response response) -> {
+            long start = System.nanoTime();
+            JsonObject result = new JsonObject();
+            JsonArray results = new JsonArray();
+            boolean success = true;
+
+            try (JsonReader reader = PublishReader.createBulkReader(PublishReader.open(request, maxbodysize))) {
+                // A JSON array or NDJSON, one JSON object per line
+                boolean array = reader.peek() == JsonToken.BEGIN_ARRAY;
+                if (array) {
+                    reader.beginArray();
+                }
+                // Publish all the items before waiting for any acknowledgement
+                Authenticator.Grant grant = getGrant(request);
+                Map<JsonObject, CompletableFuture<Void>> deliveries = new IdentityHashMap<>();
+                while (array ? reader.hasNext() : reader.peek() != JsonToken.END_DOCUMENT) {
+                    results.add(publishItem(manager, grant, reader, deliveries));
+                }
+                if (array) {
+                    reader.endArray();
+                }
+                if (waitack) {
+                    long deadline = System.currentTimeMillis() + acktimeout;
+                    for (Map.Entry<JsonObject, CompletableFuture<Void>> delivery : deliveries.entrySet()) {
+                        String error = awaitDelivery(delivery.getValue(), deadline - System.currentTimeMillis());
+                        if (error != null) {
+                            delivery.getKey().addProperty("success", false);
+                            delivery.getKey().addProperty("message", error);
+                        }
+                    }
+                }
+                for (JsonElement itemresult : results) {
+                    success &= itemresult.getAsJsonObject().get("success").getAsBoolean();
+                }
+                result.addProperty("success", success);
+                result.addProperty("message", success
+                        ? "Successfully sent " + results.size() + " messages."
+                        : "Some messages cannot be sent.");
+            } catch (PublishReader.TooLargeException ex) {
+                response.status(413); // PAYLOAD_TOO_LARGE
+                result.addProperty("success", false);
+                result.addProperty("message", ex.getMessage());
+                logger.log(Level.WARNING, ex.getMessage());
+            } catch (Compression.UnsupportedContentEncodingException ex) {
+                response.status(415); // UNSUPPORTED_MEDIA_TYPE
+                result.addProperty("success", false);
+                result.addProperty("message", ex.getMessage());
+                logger.log(Level.WARNING, ex.getMessage());
+            } catch (IOException | IllegalStateException ex) {
+                response.status(400); // BAD_REQUEST
+                result.addProperty("success", false);
+                result.addProperty("message", "Body must be a valid JSON array or NDJSON.");
+                logger.log(Level.WARNING, "Body must be a valid JSON array or NDJSON.", ex);
+            }
+            // Results of the messages processed before any error
+            result.add("results", results);
+
+            // Build response
+            publishmessages.add(results.size());
+            bulklatency.recordSince(start);
+            response.type("application/json");
+            return result.toString();
+        });
 
         s.post("/*", (Request request, Response response) -> {
+            long start = System.nanoTime();
             JsonObject result = new JsonObject();
 
             String[] route = request.splat();
@@ -90,35 +277,67 @@ public class Main {
                 response.status(400); // BAD_REQUEST
                 result.addProperty("success", false);
                 result.addProperty("message", "Empty topic.");
+            } else if (!getGrant(request).allows(route[0])) {
+                response.status(403); // FORBIDDEN
+                result.addProperty("success", false);
+                result.addProperty("message", "Not allowed to publish to topic [" + route[0] + "]");
             } else {
 
                 String topic = route[0];
 
-                try {
-                    JsonParser gsonparser = new JsonParser();
-                    JsonObject body = gsonparser.parse(request.body()).getAsJsonObject();
-
-                    byte[] message = SubscriptionDefinition.parseMessage(body.get("message").getAsString());
-                    int qos = body.has("qos") ? body.get("qos").getAsInt() : 0;
-                    boolean retained = body.has("retained") ? body.get("retained").getAsBoolean() : false;
+                try (InputStream in = PublishReader.open(request, maxbodysize)) {
+                    EventMessage message = PublishReader.isBinary(request)
+                            ? PublishReader.readBinaryMessage(request, in, topic)
+                            : PublishReader.readJsonMessage(in, topic);
 
                     try {
                         // Publish message
-                        manager.publish(new EventMessage(topic, message, qos, retained));
+                        CompletableFuture<Void> delivery = manager.publish(message);
+                        if (waitack) {
+                            delivery.get(acktimeout, TimeUnit.MILLISECONDS);
+                        }
 
                         result.addProperty("success", true);
                         result.addProperty("message", "Successfully sent message to topic [" + topic + "]");
                     } catch (MqttException ex) {
+                        response.status(ManagerMQTT.isUnavailable(ex) ? 503 : 500); // SERVICE_UNAVAILABLE or internal error
+                        result.addProperty("success", false);
+                        result.addProperty("message", "Cannot publish message to MQTT broker.");
+                        logger.log(Level.WARNING, "Cannot publish message to MQTT broker.", ex);
+                    } catch (ExecutionException ex) {
                         response.status(500); // Internal error
                         result.addProperty("success", false);
                         result.addProperty("message", "Cannot publish message to MQTT broker.");
                         logger.log(Level.WARNING, "Cannot publish message to MQTT broker.", ex);
+                    } catch (TimeoutException ex) {
+                        response.status(504); // GATEWAY_TIMEOUT
+                        result.addProperty("success", false);
+                        result.addProperty("message", "Timeout waiting for MQTT broker acknowledgement.");
+                        logger.log(Level.WARNING, "Timeout waiting for MQTT broker acknowledgement.");
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        response.status(503); // SERVICE_UNAVAILABLE
+                        result.addProperty("success", false);
+                        result.addProperty("message", "Interrupted waiting for MQTT broker acknowledgement.");
+                        logger.log(Level.WARNING, "Interrupted waiting for MQTT broker acknowledgement.");
                     }
-                } catch (JsonIOException | JsonSyntaxException ex) {
+                } catch (PublishReader.TooLargeException ex) {
+                    response.status(413); // PAYLOAD_TOO_LARGE
+                    result.addProperty("success", false);
+                    result.addProperty("message", ex.getMessage());
+                    logger.log(Level.WARNING, ex.getMessage());
+                    
+                } catch (Compression.UnsupportedContentEncodingException ex) {
+                    response.status(415); // UNSUPPORTED_MEDIA_TYPE
+                    result.addProperty("success", false);
+                    result.addProperty("message", ex.getMessage());
+                    logger.log(Level.WARNING, ex.getMessage());
+                    
+                } catch (IOException ex) {
                     response.status(400); // BAD_REQUEST
                     result.addProperty("success", false);
-                    result.addProperty("message", "Body must be a valid JSON.");
-                    logger.log(Level.WARNING, "Body must be a valid JSON.", ex);
+                    result.addProperty("message", "Body must be a valid JSON or binary message.");
+                    logger.log(Level.WARNING, "Body must be a valid JSON or binary message.", ex);
 
                 } catch (Exception ex) {
                     response.status(400); // BAD_REQUEST
@@ -129,25 +348,257 @@ public class Main {
             }
 
             // Build response
+            publishmessages.inc();
+            publishlatency.recordSince(start);
             response.type("application/json");
             return result.toString();
         });
 
         s.before(SparkUtils.ALL_PATHS, (request, response) -> {
+            Authenticator.Grant grant = authenticator.authenticate(request.headers("Authorization"));
+            if (grant == null) {
+                logger.log(Level.INFO, "Unauthorized request from {0}", request.ip());
+                s.halt(401);
+            }
+            request.attribute(GRANT, grant);
+        });
+        
+        return s;
+    }
 
-            String auth = request.headers("Authorization");
-            if (auth != null) {
-                if (auth.startsWith("Basic ")) { // "Bearer " for JWT token
-                    auth = auth.substring(6);
-                    String remotetoken = new String(Base64.getDecoder().decode(auth));
-                    if (remotetoken.equals("mqtt:" + token)) {
-                        return;
-                    }
+    private static Authenticator.Grant getGrant(Request request) {
+        return request.attribute(GRANT);
+    }
+    
+    private static String stream(StreamHub streams, long heartbeat, Authenticator.Grant grant, Request request, Response response) throws InterruptedException {
+        StreamHub.Client client;
+        try {
+            client = streams.subscribe(request.queryParams("filter"), Integer.parseInt(request.queryParamOrDefault("format", "0")), grant);
+        } catch (IllegalArgumentException ex) {
+            response.type("application/json");
+            return error(response, 400, "Invalid stream request. " + ex.getMessage()); // BAD_REQUEST
+        }
+        
+        // Server-Sent Events, sent from the request thread until the client disconnects
+        HttpServletResponse raw = response.raw();
+        raw.setStatus(200);
+        raw.setContentType("text/event-stream; charset=utf-8");
+        raw.setHeader("Cache-Control", "no-cache");
+        try {
+            Writer out = new OutputStreamWriter(raw.getOutputStream(), StandardCharsets.UTF_8);
+            out.write(": connected\n\n");
+            out.flush();
+            while (!client.isClosed()) {
+                EventMessage message = client.poll(heartbeat);
+                if (message != null) {
+                    out.write("data: ");
+                    out.write(client.format(message));
+                    out.write("\n\n");
+                } else if (!client.isClosed()) {
+                    out.write(": heartbeat\n\n");
+                } else {
+                    out.write("event: error\ndata: {\"success\":false,\"message\":\"Stream queue full.\"}\n\n");
                 }
+                out.flush();
             }
-            logger.log(Level.INFO, "Unauthorized request from {0}", request.ip());
-            s.halt(401);
-        });
+        } catch (IOException ex) {
+            logger.log(Level.FINE, "Stream connection closed.", ex);
+        } finally {
+            streams.unsubscribe(client);
+        }
+        return "";
+    }
+    
+    private static String readCache(LastValueCache cache, long maxwait, Authenticator.Grant grant, Request request, Response response) throws InterruptedException {
+        response.type("application/json");
+        
+        // From the raw path, the splat decodes the single level wildcard '+' as a space
+        String filter;
+        try {
+            filter = URLDecoder.decode(request.raw().getRequestURI().substring(1).replace("+", "%2B"), "UTF-8");
+        } catch (IllegalArgumentException | UnsupportedEncodingException ex) {
+            return error(response, 400, "Invalid topic."); // BAD_REQUEST
+        }
+        if (filter.isEmpty()) {
+            return error(response, 400, "Empty topic."); // BAD_REQUEST
+        }
+        boolean wildcard = filter.indexOf('+') >= 0 || filter.indexOf('#') >= 0;
+        if (!wildcard && !grant.allows(filter)) {
+            return error(response, 403, "Not allowed to read topic: " + filter); // FORBIDDEN
+        }
+        int format;
+        long wait;
+        try {
+            format = Integer.parseInt(request.queryParamOrDefault("format", "0"));
+            wait = Math.min(maxwait, Long.parseLong(request.queryParamOrDefault("wait", "0")));
+        } catch (NumberFormatException ex) {
+            return error(response, 400, "Invalid query parameter."); // BAD_REQUEST
+        }
+        
+        // With "wait" and a matching If-None-Match, waits for a change of the messages requested
+        String match = request.headers("If-None-Match");
+        long deadline = System.currentTimeMillis() + wait;
+        for (;;) {
+            long since = cache.getVersion();
+            List<LastValueCache.Entry> entries;
+            if (wildcard) {
+                try {
+                    entries = cache.match(filter);
+                } catch (IllegalArgumentException ex) {
+                    return error(response, 400, ex.getMessage()); // BAD_REQUEST
+                }
+                if (grant.isRestricted()) {
+                    entries.removeIf(entry -> !grant.allows(entry.getMessage().getTopic()));
+                }
+            } else {
+                LastValueCache.Entry entry = cache.get(filter);
+                entries = entry == null ? Collections.emptyList() : Collections.singletonList(entry);
+            }
+            
+            long version = 0L;
+            for (LastValueCache.Entry entry : entries) {
+                version = Math.max(version, entry.getVersion());
+            }
+            String etag = "\"" + version + "-" + entries.size() + "\"";
+            
+            if (!etag.equals(match)) {
+                response.header("ETag", etag);
+                if (!wildcard) {
+                    return entries.isEmpty()
+                            ? error(response, 404, "Topic not found in cache: " + filter) // NOT_FOUND
+                            : formatEntry(entries.get(0), format).toString();
+                }
+                JsonArray messages = new JsonArray(entries.size());
+                for (LastValueCache.Entry entry : entries) {
+                    messages.add(formatEntry(entry, format));
+                }
+                JsonObject result = new JsonObject();
+                result.add("messages", messages);
+                return result.toString();
+            }
+            
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0L || !cache.await(filter, since, remaining)) {
+                response.header("ETag", etag);
+                response.status(304); // NOT_MODIFIED
+                return "";
+            }
+        }
+    }
+    
+    private static JsonObject formatEntry(LastValueCache.Entry entry, int format) {
+        EventMessage message = entry.getMessage();
+        JsonObject result = new JsonObject();
+        result.addProperty("topic", message.getTopic());
+        result.addProperty("message", SubscriptionDefinition.formatMessage(message.getMessage(), format));
+        if (message.getQoS() > 0) {
+            result.addProperty("qos", message.getQoS());
+        }
+        if (message.isRetained()) {
+            result.addProperty("retained", true);
+        }
+        result.addProperty("updated", entry.getUpdated());
+        return result;
+    }
+    
+    private static String error(Response response, int status, String message) {
+        response.status(status);
+        JsonObject result = new JsonObject();
+        result.addProperty("success", false);
+        result.addProperty("message", message);
+        return result.toString();
+    }
+
+    private static JsonObject publishItem(ManagerMQTT manager, Authenticator.Grant grant, JsonReader reader, Map<JsonObject, CompletableFuture<Void>> deliveries) throws IOException {
+        JsonObject result = new JsonObject();
+        EventMessage message;
+        try {
+            message = PublishReader.readMessage(reader, null);
+        } catch (IllegalArgumentException ex) {
+            // The item has been read, continue with the next one
+            result.addProperty("success", false);
+            result.addProperty("message", "Item must be a valid MQTT message. " + ex.getMessage());
+            return result;
+        }
+        
+        result.addProperty("topic", message.getTopic());
+        if (!grant.allows(message.getTopic())) {
+            result.addProperty("success", false);
+            result.addProperty("message", "Not allowed to publish to topic.");
+            return result;
+        }
+        try {
+            deliveries.put(result, manager.publish(message));
+            result.addProperty("success", true);
+        } catch (MqttException ex) {
+            result.addProperty("success", false);
+            result.addProperty("message", "Cannot publish message to MQTT broker.");
+            logger.log(Level.WARNING, "Cannot publish message to MQTT broker.", ex);
+        } catch (IllegalArgumentException ex) {
+            // Rejected by the MQTT client, the other items are still published
+            result.addProperty("success", false);
+            result.addProperty("message", "Item must be a valid MQTT message. " + ex.getMessage());
+        }
+        return result;
+    }
+    
+    private static String awaitDelivery(CompletableFuture<Void> delivery, long timeout) {
+        try {
+            delivery.get(Math.max(0L, timeout), TimeUnit.MILLISECONDS);
+            return null;
+        } catch (ExecutionException ex) {
+            logger.log(Level.WARNING, "Cannot publish message to MQTT broker.", ex);
+            return "Cannot publish message to MQTT broker.";
+        } catch (TimeoutException ex) {
+            return "Timeout waiting for MQTT broker acknowledgement.";
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return "Interrupted waiting for MQTT broker acknowledgement.";
+        }
+    }
+
+    private static void watchConfig(File configfile, long interval, GroupManagers groups, ManagerMQTT manager) {
+        ScheduledExecutorService watcher = Threads.newScheduler("hellobridge-config");
+        // Last reloaded and last seen modification times
+        long[] lastmodified = {configfile.lastModified(), configfile.lastModified()};
+        watcher.scheduleWithFixedDelay(() -> {
+            long modified = configfile.lastModified();
+            if (modified != lastmodified[1]) {
+                // Still being written, wait until it does not change for an interval
+                lastmodified[1] = modified;
+            } else if (modified != lastmodified[0]) {
+                lastmodified[0] = modified;
+                try {
+                    reload(configfile, groups, manager);
+                } catch (RuntimeException | MqttException ex) {
+                    logger.log(Level.WARNING, "Configuration file changed but not reloaded: " + configfile, ex);
+                }
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    private static synchronized void reload(File configfile, GroupManagers groups, ManagerMQTT manager) throws MqttException {
+        // Only subscriptions and webhooks, other properties need a restart
+        Properties config = getConfig(configfile);
+        SubscriptionDefinition[] subs = getSubscriptions(config);
+        List<String> topics = new ArrayList<>();
+        List<Integer> qos = new ArrayList<>();
+        for (SubscriptionDefinition sub : subs) {
+            topics.add(sub.getSubscribeTopic());
+            qos.add(sub.getQos());
+        }
+        // Routes first, so messages of new subscriptions are delivered
+        Properties previousconfig = groups.getConfig();
+        SubscriptionDefinition[] previoussubs = groups.getSubscriptions();
+        groups.reload(config, subs);
+        try {
+            manager.updateSubscriptions(topics, qos);
+        } catch (MqttException ex) {
+            // Back to the routes of the subscriptions kept by the MQTT client
+            groups.reload(previousconfig, previoussubs);
+            throw ex;
+        }
+        logger.log(Level.INFO, "Configuration reloaded from: {0}", configfile);
     }
 
     private static Properties getConfig(File file) {
@@ -160,7 +611,7 @@ public class Main {
         }
     }
 
-    private static ManagerMQTT createManagerMQTT(Properties config, SubscriptionDefinition[] subs) {
+    private static ManagerMQTT createManagerMQTT(Properties config, SubscriptionDefinition[] subs, Metrics metrics) {
 
         String host = config.getProperty("mqtt.host", "localhost");
         int port = Integer.parseInt(config.getProperty("mqtt.port", "1883"));
@@ -187,6 +638,36 @@ public class Main {
             sslproperties = null;
         }
         String mqtturl = protocol + "://" + host + ":" + port;
+        
+        // In-flight messages survive restarts only with mapped persistence and a fixed client id
+        Supplier<MqttClientPersistence> persistence;
+        if ("mapped".equals(config.getProperty("mqtt.persistence", "memory"))) {
+            File persistencedir = new File(config.getProperty("mqtt.persistence.dir", new File(System.getProperty("user.home"), "hellobridge-mqtt").getPath()));
+            int segmentsize = Integer.parseInt(config.getProperty("mqtt.persistence.segmentsize", "4194304"));
+            long fsyncinterval = Long.parseLong(config.getProperty("mqtt.persistence.fsync.ms", "1000"));
+            persistence = () -> new MappedPersistence(persistencedir, segmentsize, fsyncinterval);
+            if (config.getProperty("mqtt.clientid") == null) {
+                logger.warning("Mapped MQTT persistence without configuration property [mqtt.clientid] cannot recover messages after a restart.");
+            }
+        } else {
+            persistence = MemoryPersistence::new;
+        }
+        
+        // Messages published while reconnecting wait in the offline buffer, sent in order on reconnect
+        DisconnectedBufferOptions bufferoptions = null;
+        int buffersize = Integer.parseInt(config.getProperty("mqtt.buffer.size", "0"));
+        if (buffersize > 0) {
+            DispatchQueue.Backpressure bufferpolicy = DispatchQueue.Backpressure.parse(config.getProperty("mqtt.buffer.policy", "dropnewest"));
+            if (bufferpolicy == DispatchQueue.Backpressure.BLOCK) {
+                throw new IllegalArgumentException("Offline buffer policy must be [dropoldest] or [dropnewest]: " + bufferpolicy);
+            }
+            bufferoptions = new DisconnectedBufferOptions();
+            bufferoptions.setBufferEnabled(true);
+            bufferoptions.setBufferSize(buffersize);
+            bufferoptions.setDeleteOldestMessages(bufferpolicy == DispatchQueue.Backpressure.DROP_OLDEST);
+            bufferoptions.setPersistBuffer(Boolean.parseBoolean(config.getProperty("mqtt.buffer.persist", "false")));
+        }
+        
         ManagerMQTT manager = new ManagerMQTT(
                 mqtturl,
                 config.getProperty("mqtt.username", ""),
@@ -196,10 +677,14 @@ public class Main {
                 Integer.parseInt(config.getProperty("mqtt.keepaliveinterval", Integer.toString(MqttConnectOptions.KEEP_ALIVE_INTERVAL_DEFAULT))),
                 Integer.parseInt(config.getProperty("mqtt.version", Integer.toString(MqttConnectOptions.MQTT_VERSION_DEFAULT))),
                 Integer.parseInt(config.getProperty("mqtt.maxinflight", Integer.toString(MqttConnectOptions.MAX_INFLIGHT_DEFAULT))),
-                sslproperties);
+                Integer.parseInt(config.getProperty("mqtt.publishers", "0")),
+                persistence,
+                bufferoptions,
+                sslproperties,
+                metrics);
 
         for (SubscriptionDefinition sub : subs) {
-            manager.registerSubscription(sub.getTopic(), sub.getQos());          
+            manager.registerSubscription(sub.getSubscribeTopic(), sub.getQos());          
         }
         
         return manager;
@@ -209,13 +694,15 @@ public class Main {
         List<SubscriptionDefinition> subs = new ArrayList<>();
         for(Map.Entry<Object, Object> entry: config.entrySet()) {
             String key = (String) entry.getKey();
-            if (key.startsWith("mqtt.topic.")) {
-                String [] parsed = key.split("\\.");
+            String [] parsed = key.split("\\.");
+            if (key.startsWith("mqtt.topic.") && parsed.length == 3) {
                 String name = parsed[2];
                 String topic = config.getProperty("mqtt.topic." + name);
                 int qos = Integer.parseInt(config.getProperty("mqtt.topic." + name + ".qos", "0"));
                 int format = Integer.parseInt(config.getProperty("mqtt.topic." + name + ".format", "0"));
-                subs.add(new SubscriptionDefinition(name, topic, format, qos));
+                String share = config.getProperty("mqtt.topic." + name + ".share", config.getProperty("mqtt.share"));
+                // Empty, not shared, also to exclude a subscription from mqtt.share
+                subs.add(new SubscriptionDefinition(name, topic, format, qos, share == null || share.isEmpty() ? null : share));
             }
             
         }
@@ -19,27 +19,50 @@
 package com.adr.hellobridge;
 
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import org.eclipse.paho.client.mqttv3.DisconnectedBufferOptions;
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
 import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
 import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
-import org.eclipse.paho.client.mqttv3.MqttCallback;
+import org.eclipse.paho.client.mqttv3.MqttCallbackExtended;
+import org.eclipse.paho.client.mqttv3.MqttClientPersistence;
 import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
 import org.eclipse.paho.client.mqttv3.MqttException;
 import org.eclipse.paho.client.mqttv3.MqttMessage;
-import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
 
 /**
  *
  * @author adrian
  */
-public class ManagerMQTT implements MqttCallback {
+public class ManagerMQTT implements MqttCallbackExtended {
 
     public final static String SYS_PREFIX = "$SYS/";
 
     private final static Logger logger = Logger.getLogger(ManagerMQTT.class.getName());
+    
+    private final IMqttActionListener deliverylistener = new IMqttActionListener() {
+        @Override
+        public void onSuccess(IMqttToken token) {
+            Delivery delivery = (Delivery) token.getUserContext();
+            publishlatency.recordSince(delivery.start);
+            delivery.complete(null);
+        }
+
+        @Override
+        public void onFailure(IMqttToken token, Throwable ex) {
+            Delivery delivery = (Delivery) token.getUserContext();
+            publishfailures.inc();
+            delivery.completeExceptionally(ex);
+        }
+    };
 
     private final String url;
     private final String username;
@@ -49,16 +72,27 @@ public class ManagerMQTT implements MqttCallback {
     private final int keepalive;
     private final int version;
     private final int maxinflight;
+    private final int publishers;
+    private final Supplier<MqttClientPersistence> persistence;
+    private final DisconnectedBufferOptions bufferoptions;
     private final Properties sslproperties;
 
     // Manager
     private GroupManagers group;
+    private LastValueCache cache;
+    // Metrics
+    private final Metrics.Histogram publishlatency;
+    private final Metrics.Counter publishfailures;
+    private final Metrics.Counter received;
+    private final Metrics.Counter bufferdropped;
     // MQTT
     private MqttAsyncClient mqttClient;
+    // Connections used only to publish, empty to publish on mqttClient
+    private MqttAsyncClient[] publishClients = new MqttAsyncClient[0];
     private final List<String> worktopics = new ArrayList<>();
     private final List<Integer> workqos = new ArrayList<>();
 
-    public ManagerMQTT(String url, String username, String password, String clientid, int timeout, int keepalive, int version, int maxinflight, Properties sslproperties) {
+    public ManagerMQTT(String url, String username, String password, String clientid, int timeout, int keepalive, int version, int maxinflight, int publishers, Supplier<MqttClientPersistence> persistence, DisconnectedBufferOptions bufferoptions, Properties sslproperties, Metrics metrics) {
 
         this.url = url;
         this.username = username;
@@ -68,20 +102,101 @@ public class ManagerMQTT implements MqttCallback {
         this.keepalive = keepalive;
         this.version = version;
         this.maxinflight = maxinflight;
+        this.publishers = publishers;
+        this.persistence = persistence;
+        this.bufferoptions = bufferoptions;
         this.sslproperties = sslproperties;
 
         this.mqttClient = null;
+
+        publishlatency = metrics.histogram("hellobridge_mqtt_publish_seconds", "Time from publish to broker acknowledgement.", Metrics.REQUEST_BUCKETS);
+        publishfailures = metrics.counter("hellobridge_mqtt_publish_failures_total", "Messages not acknowledged by the broker.");
+        received = metrics.counter("hellobridge_mqtt_received_total", "Messages received from subscriptions.");
+        bufferdropped = metrics.counter("hellobridge_mqtt_buffer_dropped_total", "Messages discarded because the offline buffer is full.");
+        metrics.gauge("hellobridge_mqtt_buffered", "Messages waiting in the offline buffer for the connection to the broker.", this::getBufferedCount);
     }
     
     public void registerTopicsManager(GroupManagers group) {
         this.group = group;
     }
     
+    public void registerCache(LastValueCache cache) {
+        this.cache = cache;
+    }
+    
     public void registerSubscription(String topic, int qos) {
         worktopics.add(topic);
         workqos.add(qos);
     }
     
+    /**
+     * Changes the subscriptions of the live connection. Only topics that are
+     * new or change their QoS are subscribed, and only topics not used
+     * anymore are unsubscribed, the session and the other subscriptions are
+     * kept.
+     */
+    public synchronized void updateSubscriptions(List<String> topics, List<Integer> qos) throws MqttException {
+        Map<String, Integer> current = getSubscriptions(worktopics, workqos);
+        Map<String, Integer> next = getSubscriptions(topics, qos);
+
+        List<String> subscribe = new ArrayList<>();
+        List<Integer> subscribeqos = new ArrayList<>();
+        for (Map.Entry<String, Integer> e : next.entrySet()) {
+            if (!e.getValue().equals(current.get(e.getKey()))) {
+                subscribe.add(e.getKey());
+                subscribeqos.add(e.getValue());
+            }
+        }
+        List<String> unsubscribe = new ArrayList<>();
+        for (String topic : current.keySet()) {
+            if (!next.containsKey(topic)) {
+                unsubscribe.add(topic);
+            }
+        }
+
+        MqttAsyncClient client = mqttClient;
+        if (client != null) {
+            if (!subscribe.isEmpty()) {
+                int[] listqos = new int[subscribeqos.size()];
+                for (int i = 0; i < listqos.length; i++) {
+                    listqos[i] = subscribeqos.get(i);
+                }
+                client.subscribe(subscribe.toArray(new String[subscribe.size()]), listqos).waitForCompletion(timeout * 1000L);
+            }
+            if (!unsubscribe.isEmpty()) {
+                try {
+                    client.unsubscribe(unsubscribe.toArray(new String[unsubscribe.size()])).waitForCompletion(timeout * 1000L);
+                } catch (MqttException ex) {
+                    // Keep the subscriptions as they were, the topics resubscribed keep their new QoS
+                    List<String> added = new ArrayList<>(subscribe);
+                    added.removeAll(current.keySet());
+                    if (!added.isEmpty()) {
+                        try {
+                            client.unsubscribe(added.toArray(new String[added.size()])).waitForCompletion(timeout * 1000L);
+                        } catch (MqttException rollbackex) {
+                            logger.log(Level.WARNING, "Cannot unsubscribe added MQTT subscriptions.", rollbackex);
+                        }
+                    }
+                    throw ex;
+                }
+            }
+        }
+        worktopics.clear();
+        worktopics.addAll(topics);
+        workqos.clear();
+        workqos.addAll(qos);
+        logger.log(Level.INFO, "MQTT subscriptions updated, subscribed {0}, unsubscribed {1}.", new Object[]{subscribe, unsubscribe});
+    }
+
+    private static Map<String, Integer> getSubscriptions(List<String> topics, List<Integer> qos) {
+        // Several subscriptions with the same topic share the MQTT subscription with the highest QoS
+        Map<String, Integer> result = new LinkedHashMap<>();
+        for (int i = 0; i < topics.size(); i++) {
+            result.merge(topics.get(i), qos.get(i), Math::max);
+        }
+        return result;
+    }
+    
     public void connect() throws MqttException {
         
         String[] listtopics = worktopics.toArray(new String[worktopics.size()]);
@@ -90,7 +205,22 @@ public class ManagerMQTT implements MqttCallback {
             listqos[i] = workqos.get(i);
         }
         
-        mqttClient = new MqttAsyncClient(url, clientid, new MemoryPersistence());
+        mqttClient = createClient(clientid);
+        if (listtopics.length > 0) {
+            mqttClient.subscribe(listtopics, listqos);
+        }
+        
+        MqttAsyncClient[] clients = new MqttAsyncClient[publishers];
+        for (int i = 0; i < publishers; i++) {
+            clients[i] = createClient(clientid + "-pub" + i);
+        }
+        publishClients = clients;
+            
+        logger.log(Level.INFO, "Connected to MQTT broker on [{0}] with {1} publisher connections", new Object[]{url, publishers});
+    }
+    
+    private MqttAsyncClient createClient(String id) throws MqttException {
+        MqttAsyncClient client = new MqttAsyncClient(url, id, persistence.get());
         MqttConnectOptions options = new MqttConnectOptions();
         if (username != null && !username.isEmpty()) {
             options.setUserName(username);
@@ -103,17 +233,29 @@ public class ManagerMQTT implements MqttCallback {
         options.setAutomaticReconnect(true);
         options.setMaxInflight(maxinflight);
         options.setSSLProperties(sslproperties);
-        mqttClient.connect(options).waitForCompletion(1000);
-        mqttClient.setCallback(this);
-        if (listtopics.length > 0) {
-            mqttClient.subscribe(listtopics, listqos);
+        if (bufferoptions != null) {
+            client.setBufferOpts(bufferoptions);
         }
-            
-        logger.log(Level.INFO, "Connected to MQTT broker on [{0}]", url);
+        client.connect(options).waitForCompletion(1000);
+        client.setCallback(this);
+        return client;
     }
 
     public void disconnect() {
         // To be invoked by executor thread
+        for (MqttAsyncClient client : publishClients) {
+            if (client.isConnected()) {
+                try {
+                    client.setCallback(null);
+                    client.disconnect();
+                    client.close();
+                } catch (MqttException ex) {
+                    logger.log(Level.WARNING, null, ex);
+                }
+            }
+        }
+        publishClients = new MqttAsyncClient[0];
+        
         if (mqttClient != null) {
             if (mqttClient.isConnected()) {
                 try {
@@ -130,30 +272,97 @@ public class ManagerMQTT implements MqttCallback {
         }
     }
 
-    public void publish(EventMessage message) throws MqttException {
+    public CompletableFuture<Void> publish(EventMessage message) throws MqttException {
 
         // To be executed in Executor thread
+        Delivery delivery = new Delivery();
         if (mqttClient == null) {
-            return;
+            delivery.complete(null);
+            return delivery;
         }
 
         MqttMessage mm = new MqttMessage(message.getMessage());
         mm.setQos(message.getQoS());
         mm.setRetained(message.isRetained());
-        mqttClient.publish(message.getTopic(), mm);
+        MqttAsyncClient client = getPublishClient(message.getTopic());
+        if (bufferoptions != null && bufferoptions.isDeleteOldestMessages()
+                && !client.isConnected() && client.getBufferedMessageCount() >= bufferoptions.getBufferSize()) {
+            // The client discards the oldest buffered message
+            bufferdropped.inc();
+        }
+        try {
+            // The delivery is completed when the broker acknowledges the message, or when sent for QoS 0
+            client.publish(message.getTopic(), mm, delivery, deliverylistener);
+        } catch (MqttException ex) {
+            if (ex.getReasonCode() == MqttException.REASON_CODE_DISCONNECTED_BUFFER_FULL) {
+                bufferdropped.inc();
+            }
+            throw ex;
+        }
+        return delivery;
+    }
+    
+    public static boolean isUnavailable(MqttException ex) {
+        // Disconnected, and the offline buffer is disabled or full
+        return ex.getReasonCode() == MqttException.REASON_CODE_CLIENT_NOT_CONNECTED
+                || ex.getReasonCode() == MqttException.REASON_CODE_DISCONNECTED_BUFFER_FULL;
+    }
+    
+    private long getBufferedCount() {
+        if (bufferoptions == null) {
+            // The client has no buffer
+            return 0L;
+        }
+        long count = 0L;
+        MqttAsyncClient client = mqttClient;
+        if (client != null) {
+            count += client.getBufferedMessageCount();
+        }
+        for (MqttAsyncClient c : publishClients) {
+            count += c.getBufferedMessageCount();
+        }
+        return count;
+    }
+    
+    private MqttAsyncClient getPublishClient(String topic) {
+        // Same topic, same connection, to keep the order of the messages of a topic
+        MqttAsyncClient[] clients = publishClients;
+        if (clients.length == 0) {
+            return mqttClient;
+        }
+        return clients[(topic.hashCode() & 0x7fffffff) % clients.length];
     }
     
     @Override
     public void connectionLost(Throwable ex) {
-        logger.log(Level.WARNING, "Connection to MQTT broker lost.", ex);
+        logger.log(Level.WARNING, bufferoptions == null
+                ? "Connection to MQTT broker lost."
+                : "Connection to MQTT broker lost, buffering messages until reconnected.", ex);
+    }
+
+    @Override
+    public void connectComplete(boolean reconnect, String serveruri) {
+        if (reconnect) {
+            logger.log(Level.INFO, "Reconnected to MQTT broker on [{0}], sending {1} buffered messages.", new Object[]{serveruri, getBufferedCount()});
+        }
     }
 
     @Override
     public void messageArrived(String topic, MqttMessage mm) throws Exception {
-        group.distributeMessage(new EventMessage(topic, mm.getPayload(), mm.getQos(), mm.isRetained()));
+        received.inc();
+        EventMessage message = new EventMessage(topic, mm.getPayload(), mm.getQos(), mm.isRetained());
+        if (cache != null) {
+            cache.put(message);
+        }
+        group.distributeMessage(message);
     }
 
     @Override
     public void deliveryComplete(IMqttDeliveryToken imdt) {
     }    
+
+    private static class Delivery extends CompletableFuture<Void> {
+        
+        private final long start = System.nanoTime();
+    }
 }
@@ -0,0 +1,427 @@
+//    HelloBridge is a bridge from HTTP to MQTT
+//    Copyright (C) 2019 Adrián Romero Corchado.
+//
+//    This file is part of HelloBridge.
+//
+//    HelloIot is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    HelloIot is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with HelloIot.  If not, see <http://www.gnu.org/licenses/>.
+//
+package com.adr.hellobridge;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.eclipse.paho.client.mqttv3.MqttClientPersistence;
+import org.eclipse.paho.client.mqttv3.MqttPersistable;
+import org.eclipse.paho.client.mqttv3.MqttPersistenceException;
+
+/**
+ * Durable MQTT client persistence. Puts and removes are appended to memory
+ * mapped segment files and an index in memory keeps the position of each
+ * key, so in-flight messages survive a restart without writing a file for
+ * each message.
+ *
+ * Records are stored in {@link SegmentFile} files, as in the retry log.
+ * Segments are deleted from the oldest once none of their records is
+ * current, and the current records of the oldest segment are copied forward
+ * when a new segment is started so the log does not grow behind a message
+ * never acknowledged.
+ *
+ * @author adrian
+ */
+public class MappedPersistence implements MqttClientPersistence {
+
+    private final static Logger logger = Logger.getLogger(MappedPersistence.class.getName());
+
+    private static final int HEADER = SegmentFile.HEADER;
+    private static final byte PUT = 1;
+    private static final byte REMOVE = 2;
+
+    private final File basedir;
+    private final int segmentsize;
+    private final long fsyncinterval;
+
+    private final Map<String, Location> index = new HashMap<>();
+    private final TreeMap<Long, Segment> segments = new TreeMap<>();
+    private File dir;
+    private Segment writesegment;
+    private FileChannel lockchannel;
+    private FileLock lock;
+    private ScheduledExecutorService fsync;
+
+    public MappedPersistence(File basedir, int segmentsize, long fsyncinterval) {
+        this.basedir = basedir;
+        this.segmentsize = segmentsize;
+        this.fsyncinterval = fsyncinterval;
+    }
+
+    @Override
+    public synchronized void open(String clientid, String serveruri) throws MqttPersistenceException {
+        File clientdir = new File(basedir, clean(clientid + "-" + serveruri));
+        if (lock != null) {
+            if (clientdir.equals(dir)) {
+                // Paho opens again on reconnect without closing when the disconnected buffer is enabled
+                return;
+            }
+            close();
+        }
+
+        FileChannel openchannel = null;
+        FileLock openlock = null;
+        try {
+            if (!clientdir.isDirectory() && !clientdir.mkdirs()) {
+                throw new IOException("Cannot create MQTT persistence directory: " + clientdir);
+            }
+            openchannel = new RandomAccessFile(new File(clientdir, "lock"), "rw").getChannel();
+            try {
+                openlock = openchannel.tryLock();
+            } catch (OverlappingFileLockException ex) {
+                // Locked by another instance in this process
+                openlock = null;
+            }
+            if (openlock == null) {
+                throw new MqttPersistenceException(MqttPersistenceException.REASON_CODE_PERSISTENCE_IN_USE);
+            }
+
+            dir = clientdir;
+            for (Long id : SegmentFile.list(dir).keySet()) {
+                segments.put(id, new Segment(dir, id, segmentsize));
+            }
+            for (Segment s : segments.values()) {
+                // Replay the records into the index
+                s.recover((payload, offset) -> {
+                    String key = new String(payload, 3, ((payload[1] & 0xFF) << 8) | (payload[2] & 0xFF), StandardCharsets.UTF_8);
+                    update(key, payload[0] == PUT ? new Location(s, offset, payload.length) : null);
+                });
+            }
+            writesegment = segments.isEmpty() ? newSegment(0L) : segments.lastEntry().getValue();
+            deleteHead();
+            lockchannel = openchannel;
+            lock = openlock;
+        } catch (IOException | MqttPersistenceException ex) {
+            // Nothing kept open, the instance can be opened again
+            closeSegments();
+            if (openchannel != null) {
+                try {
+                    openchannel.close();
+                } catch (IOException closeex) {
+                    logger.log(Level.WARNING, "Cannot close MQTT persistence lock.", closeex);
+                }
+            }
+            throw ex instanceof MqttPersistenceException ? (MqttPersistenceException) ex : new MqttPersistenceException(ex);
+        }
+
+        if (!index.isEmpty()) {
+            logger.log(Level.INFO, "MQTT persistence recovered {0} messages for client {1}.", new Object[]{index.size(), clientid});
+        }
+
+        if (fsyncinterval > 0L) {
+            fsync = Threads.newScheduler("hellobridge-persistence-fsync");
+            fsync.scheduleWithFixedDelay(this::force, fsyncinterval, fsyncinterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Override
+    public void close() throws MqttPersistenceException {
+        if (fsync != null) {
+            fsync.shutdown();
+            fsync = null;
+        }
+        synchronized (this) {
+            try {
+                closeSegments();
+                if (lock != null) {
+                    lock.release();
+                    lockchannel.close();
+                    lock = null;
+                }
+            } catch (IOException ex) {
+                throw new MqttPersistenceException(ex);
+            }
+        }
+    }
+
+    @Override
+    public synchronized void put(String key, MqttPersistable persistable) throws MqttPersistenceException {
+        byte[] keybytes = key.getBytes(StandardCharsets.UTF_8);
+        int length = 1 + 2 + keybytes.length + 4 + persistable.getHeaderLength() + 4 + persistable.getPayloadLength();
+        if (length + HEADER > segmentsize) {
+            throw new MqttPersistenceException(new IOException("Message too large for the MQTT persistence segment size: " + key));
+        }
+        try {
+            Segment s = reserve(length);
+            ByteBuffer b = s.begin(length);
+            b.put(PUT);
+            b.putShort((short) keybytes.length);
+            b.put(keybytes);
+            b.putInt(persistable.getHeaderLength());
+            b.put(persistable.getHeaderBytes(), persistable.getHeaderOffset(), persistable.getHeaderLength());
+            b.putInt(persistable.getPayloadLength());
+            if (persistable.getPayloadLength() > 0) {
+                b.put(persistable.getPayloadBytes(), persistable.getPayloadOffset(), persistable.getPayloadLength());
+            }
+            update(key, new Location(s, s.commit(length), length));
+        } catch (IOException ex) {
+            throw new MqttPersistenceException(ex);
+        }
+        if (fsyncinterval == 0L) {
+            force();
+        }
+    }
+
+    @Override
+    public synchronized MqttPersistable get(String key) throws MqttPersistenceException {
+        Location location = index.get(key);
+        if (location == null) {
+            return null;
+        }
+        byte[] record = location.segment.read(location.offset);
+        if (record == null) {
+            throw new MqttPersistenceException(new IOException("Corrupted MQTT persistence segment: " + location.segment.getFile()));
+        }
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(record))) {
+            in.readByte();
+            in.skipBytes(in.readUnsignedShort());
+            byte[] header = new byte[in.readInt()];
+            in.readFully(header);
+            byte[] payload = new byte[in.readInt()];
+            in.readFully(payload);
+            return new Data(header, payload);
+        } catch (IOException ex) {
+            throw new MqttPersistenceException(ex);
+        }
+    }
+
+    @Override
+    public synchronized void remove(String key) throws MqttPersistenceException {
+        if (!index.containsKey(key)) {
+            return;
+        }
+        byte[] keybytes = key.getBytes(StandardCharsets.UTF_8);
+        int length = 1 + 2 + keybytes.length;
+        try {
+            Segment s = reserve(length);
+            ByteBuffer b = s.begin(length);
+            b.put(REMOVE);
+            b.putShort((short) keybytes.length);
+            b.put(keybytes);
+            s.commit(length);
+            update(key, null);
+            deleteHead();
+        } catch (IOException ex) {
+            throw new MqttPersistenceException(ex);
+        }
+        if (fsyncinterval == 0L) {
+            force();
+        }
+    }
+
+    @Override
+    public synchronized Enumeration<String> keys() throws MqttPersistenceException {
+        return Collections.enumeration(new ArrayList<>(index.keySet()));
+    }
+
+    @Override
+    public synchronized void clear() throws MqttPersistenceException {
+        try {
+            for (Segment s : segments.values()) {
+                s.close();
+                s.delete();
+            }
+            segments.clear();
+            index.clear();
+            writesegment = newSegment(0L);
+        } catch (IOException ex) {
+            throw new MqttPersistenceException(ex);
+        }
+    }
+
+    @Override
+    public synchronized boolean containsKey(String key) throws MqttPersistenceException {
+        return index.containsKey(key);
+    }
+
+    private void closeSegments() {
+        for (Segment s : segments.values()) {
+            try {
+                s.close();
+            } catch (IOException ex) {
+                logger.log(Level.WARNING, "Cannot close MQTT persistence segment: " + s.getFile(), ex);
+            }
+        }
+        segments.clear();
+        index.clear();
+        writesegment = null;
+    }
+
+    private Segment reserve(int length) throws IOException {
+        if (!writesegment.fits(length)) {
+            writesegment.force();
+            writesegment = newSegment(writesegment.getId() + 1);
+            deleteHead();
+            compactHead(length);
+        }
+        return writesegment;
+    }
+
+    private void compactHead(int length) throws IOException {
+        // Only when the current records of the head and the new record fit in the write segment
+        Segment head = segments.firstEntry().getValue();
+        if (segments.size() <= 2 || head.livebytes + (long) HEADER * (head.live + 1) + length > segmentsize - writesegment.getPosition()) {
+            return;
+        }
+        for (Map.Entry<String, Location> e : index.entrySet()) {
+            Location location = e.getValue();
+            if (location.segment == head) {
+                byte[] payload = head.read(location.offset);
+                Location moved = new Location(writesegment, writesegment.write(payload), payload.length);
+                head.live--;
+                head.livebytes -= location.length;
+                writesegment.live++;
+                writesegment.livebytes += moved.length;
+                e.setValue(moved);
+            }
+        }
+        writesegment.force();
+        deleteHead();
+    }
+
+    private void update(String key, Location location) {
+        Location previous = location == null ? index.remove(key) : index.put(key, location);
+        if (previous != null) {
+            previous.segment.live--;
+            previous.segment.livebytes -= previous.length;
+        }
+        if (location != null) {
+            location.segment.live++;
+            location.segment.livebytes += location.length;
+        }
+    }
+
+    private void deleteHead() throws IOException {
+        // In order, so a remove record is never deleted before the put it cancels
+        while (segments.size() > 1 && segments.firstEntry().getValue().live == 0) {
+            Segment head = segments.pollFirstEntry().getValue();
+            head.close();
+            head.delete();
+        }
+    }
+
+    private synchronized void force() {
+        if (writesegment != null) {
+            writesegment.force();
+        }
+    }
+
+    private Segment newSegment(long id) throws IOException {
+        Segment s = new Segment(dir, id, segmentsize);
+        segments.put(id, s);
+        return s;
+    }
+
+    private static String clean(String name) {
+        StringBuilder sb = new StringBuilder(name.length());
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (Character.isLetterOrDigit(c) || c == '-') {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    private static class Location {
+
+        private final Segment segment;
+        private final int offset;
+        private final int length;
+
+        Location(Segment segment, int offset, int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private static class Segment extends SegmentFile {
+
+        // Current records, not replaced or removed
+        private int live = 0;
+        private long livebytes = 0L;
+
+        Segment(File dir, long id, int size) throws IOException {
+            super(dir, id, size);
+        }
+    }
+
+    /**
+     * Message read from the persistence.
+     */
+    public static class Data implements MqttPersistable {
+
+        private final byte[] header;
+        private final byte[] payload;
+
+        public Data(byte[] header, byte[] payload) {
+            this.header = header;
+            this.payload = payload;
+        }
+
+        @Override
+        public byte[] getHeaderBytes() {
+            return header;
+        }
+
+        @Override
+        public int getHeaderLength() {
+            return header.length;
+        }
+
+        @Override
+        public int getHeaderOffset() {
+            return 0;
+        }
+
+        @Override
+        public byte[] getPayloadBytes() {
+            return payload;
+        }
+
+        @Override
+        public int getPayloadLength() {
+            return payload.length;
+        }
+
+        @Override
+        public int getPayloadOffset() {
+            return 0;
+        }
+    }
+}
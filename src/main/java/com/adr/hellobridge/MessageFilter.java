@@ -0,0 +1,453 @@
+//    HelloBridge is a bridge from HTTP to MQTT
+//    Copyright (C) 2019 Adrián Romero Corchado.
+//
+//    This file is part of HelloBridge.
+//
+//    HelloIot is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    HelloIot is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with HelloIot.  If not, see <http://www.gnu.org/licenses/>.
+//
+package com.adr.hellobridge;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Conditions and projection of the messages of a subscription, compiled from
+ * its configuration. Only the fields the conditions and the projection refer
+ * to are read from the message, skipping the rest of the JSON.
+ *
+ * Fields are dot separated paths of JSON object properties, and
+ * <code>$</code> is the whole message. Messages that are not a single JSON
+ * value are plain text, <code>$</code> is the whole text and other fields are
+ * not found.
+ *
+ * Changes and deadbands compare with the last value queued for delivery, so
+ * {@link #queued(EventMessage)} must be called once a message passed is
+ * actually queued. The last values of the least recently used topics are
+ * forgotten when there are more than <code>maxtopics</code>.
+ *
+ * @author adrian
+ */
+public class MessageFilter {
+
+    private static final JsonParser PARSER = new JsonParser();
+    private static final Pattern CONDITION = Pattern.compile("\\s*([^\\s=!<>]+)\\s*(==|!=|>=|<=|>|<)\\s*(.+?)\\s*");
+
+    private enum Operator {
+        EQ, NE, GT, GE, LT, LE
+    }
+
+    // Fields read from the message
+    private final List<String[]> paths = new ArrayList<>();
+    private int maxdepth = 0;
+
+    private final List<Condition> conditions = new ArrayList<>();
+    private final int[] projection;
+    private final boolean onchange;
+    private final int deadbandfield;
+    private final double deadband;
+    // Last queued and last passed values by topic, for changes and deadbands
+    private final LastValues lastvalues;
+
+    public MessageFilter(String expression, String projection, boolean onchange, String deadbandfield, double deadband, int maxtopics) {
+        if (expression != null) {
+            for (String c : splitConditions(expression)) {
+                Matcher m = CONDITION.matcher(c);
+                if (!m.matches()) {
+                    throw new IllegalArgumentException("Invalid filter condition: " + c.trim());
+                }
+                conditions.add(new Condition(path(m.group(1)), parseOperator(m.group(2)), parseValue(m.group(3))));
+            }
+        }
+        if (projection == null) {
+            this.projection = null;
+        } else {
+            String[] fields = projection.split(",");
+            this.projection = new int[fields.length];
+            for (int i = 0; i < fields.length; i++) {
+                this.projection[i] = path(fields[i].trim());
+            }
+        }
+        this.onchange = onchange;
+        this.deadbandfield = deadband > 0.0 ? path(deadbandfield) : -1;
+        this.deadband = deadband;
+        this.lastvalues = new LastValues(maxtopics);
+    }
+
+    public static MessageFilter create(Properties config, String prefix) {
+        String expression = config.getProperty(prefix + ".filter");
+        String projection = config.getProperty(prefix + ".project");
+        boolean onchange = Boolean.parseBoolean(config.getProperty(prefix + ".onchange", "false"));
+        double deadband = Double.parseDouble(config.getProperty(prefix + ".deadband", "0"));
+        if (expression == null && projection == null && !onchange && deadband <= 0.0) {
+            return null;
+        }
+        return new MessageFilter(expression, projection, onchange, config.getProperty(prefix + ".deadband.field", "$"), deadband,
+                Integer.parseInt(config.getProperty(prefix + ".filter.maxtopics", "10000")));
+    }
+
+    // The message to deliver, projected, or null if it does not pass the filter
+    public EventMessage apply(EventMessage message) {
+        JsonElement[] values = extract(message.getMessage());
+
+        for (Condition c : conditions) {
+            if (!c.test(values[c.path])) {
+                return null;
+            }
+        }
+
+        byte[] payload = message.getMessage();
+        if (projection != null) {
+            JsonObject result = new JsonObject();
+            for (int p : projection) {
+                if (values[p] != null) {
+                    put(result, paths.get(p), values[p]);
+                }
+            }
+            payload = result.toString().getBytes(StandardCharsets.UTF_8);
+        }
+
+        Object value = null;
+        if (deadbandfield >= 0) {
+            value = getNumber(values[deadbandfield]);
+            if (value == null) {
+                return null;
+            }
+        } else if (onchange) {
+            value = payload;
+        }
+
+        EventMessage result = payload == message.getMessage()
+                ? message
+                : new EventMessage(message.getTopic(), payload, message.getQoS(), message.isRetained());
+
+        if (value != null) {
+            synchronized (lastvalues) {
+                LastValue last = lastvalues.get(message.getTopic());
+                if (last == null) {
+                    last = new LastValue();
+                    lastvalues.put(message.getTopic(), last);
+                } else if (last.queued != null && isUnchanged(last.queued, value)) {
+                    return null;
+                }
+                last.passed = result;
+                last.passedvalue = value;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Records the value of a message returned by {@link #apply(EventMessage)}
+     * as the last one queued for its topic. Messages replaced by a later one
+     * of the same topic, for example by conflation, are ignored.
+     */
+    public void queued(EventMessage message) {
+        if (deadbandfield < 0 && !onchange) {
+            return;
+        }
+        synchronized (lastvalues) {
+            LastValue last = lastvalues.get(message.getTopic());
+            if (last != null && last.passed == message) {
+                last.queued = last.passedvalue;
+                last.passed = null;
+                last.passedvalue = null;
+            }
+        }
+    }
+
+    private boolean isUnchanged(Object last, Object value) {
+        return deadbandfield >= 0
+                ? Math.abs((Double) value - (Double) last) < deadband
+                : Arrays.equals((byte[]) last, (byte[]) value);
+    }
+
+    private static Double getNumber(JsonElement value) {
+        if (value == null || !value.isJsonPrimitive()) {
+            return null;
+        }
+        JsonPrimitive primitive = value.getAsJsonPrimitive();
+        if (primitive.isNumber()) {
+            return primitive.getAsDouble();
+        }
+        if (primitive.isString()) {
+            try {
+                return Double.parseDouble(primitive.getAsString());
+            } catch (NumberFormatException ex) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    // Splits on && outside of quoted strings
+    private static List<String> splitConditions(String expression) {
+        List<String> result = new ArrayList<>();
+        boolean quoted = false;
+        int start = 0;
+        for (int i = 0; i < expression.length(); i++) {
+            char c = expression.charAt(i);
+            if (c == '"') {
+                quoted = !quoted;
+            } else if (!quoted && c == '&' && expression.startsWith("&&", i)) {
+                result.add(expression.substring(start, i));
+                start = i + 2;
+                i++;
+            }
+        }
+        result.add(expression.substring(start));
+        return result;
+    }
+
+    private JsonElement[] extract(byte[] message) {
+        JsonElement[] values = new JsonElement[paths.size()];
+        try {
+            JsonReader reader = new JsonReader(new InputStreamReader(new ByteArrayInputStream(message), StandardCharsets.UTF_8));
+            walk(reader, new String[maxdepth], 0, values);
+            if (reader.peek() == JsonToken.END_DOCUMENT) {
+                return values;
+            }
+        } catch (IOException | JsonParseException | IllegalStateException ex) {
+            // Not JSON
+        }
+        // Plain text, only the whole message is found
+        values = new JsonElement[paths.size()];
+        for (int i = 0; i < paths.size(); i++) {
+            if (paths.get(i).length == 0) {
+                values[i] = new JsonPrimitive(new String(message, StandardCharsets.UTF_8));
+            }
+        }
+        return values;
+    }
+
+    private void walk(JsonReader reader, String[] stack, int depth, JsonElement[] values) throws IOException {
+        int exact = -1;
+        boolean inner = false;
+        for (int i = 0; i < paths.size(); i++) {
+            String[] p = paths.get(i);
+            if (startsWith(p, stack, depth)) {
+                if (p.length == depth) {
+                    exact = i;
+                } else {
+                    inner = true;
+                }
+            }
+        }
+
+        if (exact >= 0) {
+            JsonElement value = PARSER.parse(reader);
+            values[exact] = value;
+            if (inner) {
+                // Other fields inside this one
+                for (int i = 0; i < paths.size(); i++) {
+                    String[] p = paths.get(i);
+                    if (p.length > depth && startsWith(p, stack, depth)) {
+                        values[i] = get(value, p, depth);
+                    }
+                }
+            }
+        } else if (inner && reader.peek() == JsonToken.BEGIN_OBJECT) {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                stack[depth] = reader.nextName();
+                walk(reader, stack, depth + 1, values);
+            }
+            reader.endObject();
+        } else {
+            reader.skipValue();
+        }
+    }
+
+    private static boolean startsWith(String[] path, String[] stack, int depth) {
+        if (path.length < depth) {
+            return false;
+        }
+        for (int i = 0; i < depth; i++) {
+            if (!path[i].equals(stack[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static JsonElement get(JsonElement value, String[] path, int from) {
+        for (int i = from; i < path.length; i++) {
+            if (!value.isJsonObject()) {
+                return null;
+            }
+            value = value.getAsJsonObject().get(path[i]);
+            if (value == null) {
+                return null;
+            }
+        }
+        return value;
+    }
+
+    private static void put(JsonObject result, String[] path, JsonElement value) {
+        if (path.length == 0) {
+            result.add("$", value);
+            return;
+        }
+        JsonObject parent = result;
+        for (int i = 0; i < path.length - 1; i++) {
+            JsonElement child = parent.get(path[i]);
+            if (child == null || !child.isJsonObject()) {
+                child = new JsonObject();
+                parent.add(path[i], child);
+            }
+            parent = child.getAsJsonObject();
+        }
+        parent.add(path[path.length - 1], value);
+    }
+
+    private int path(String field) {
+        String[] p = "$".equals(field) ? new String[0] : field.split("\\.");
+        for (int i = 0; i < paths.size(); i++) {
+            if (Arrays.equals(paths.get(i), p)) {
+                return i;
+            }
+        }
+        paths.add(p);
+        maxdepth = Math.max(maxdepth, p.length);
+        return paths.size() - 1;
+    }
+
+    private static Operator parseOperator(String op) {
+        switch (op) {
+            case "==":
+                return Operator.EQ;
+            case "!=":
+                return Operator.NE;
+            case ">":
+                return Operator.GT;
+            case ">=":
+                return Operator.GE;
+            case "<":
+                return Operator.LT;
+            default:
+                return Operator.LE;
+        }
+    }
+
+    private static JsonElement parseValue(String value) {
+        if (value.length() >= 2 && value.startsWith("\"") && value.endsWith("\"")) {
+            return new JsonPrimitive(value.substring(1, value.length() - 1));
+        }
+        switch (value) {
+            case "true":
+                return new JsonPrimitive(true);
+            case "false":
+                return new JsonPrimitive(false);
+            case "null":
+                return JsonNull.INSTANCE;
+            default:
+                try {
+                    return new JsonPrimitive(Double.parseDouble(value));
+                } catch (NumberFormatException ex) {
+                    throw new IllegalArgumentException("Invalid filter value: " + value);
+                }
+        }
+    }
+
+    private static class LastValues extends LinkedHashMap<String, LastValue> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int maxtopics;
+
+        LastValues(int maxtopics) {
+            super(16, 0.75f, true);
+            this.maxtopics = maxtopics;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, LastValue> eldest) {
+            return size() > maxtopics;
+        }
+    }
+
+    private static class LastValue {
+
+        private Object queued;
+        // Passed the filter and not queued yet
+        private EventMessage passed;
+        private Object passedvalue;
+    }
+
+    private static class Condition {
+
+        private final int path;
+        private final Operator op;
+        private final JsonElement value;
+
+        Condition(int path, Operator op, JsonElement value) {
+            this.path = path;
+            this.op = op;
+            this.value = value;
+        }
+
+        boolean test(JsonElement field) {
+            int c;
+            if (value.isJsonNull() || field == null || field.isJsonNull() || !field.isJsonPrimitive()) {
+                // Only equality with null and objects
+                boolean equal = value.isJsonNull() && (field == null || field.isJsonNull());
+                return op == Operator.EQ ? equal : op == Operator.NE && !equal;
+            } else if (value.getAsJsonPrimitive().isNumber()) {
+                try {
+                    c = Double.compare(field.getAsDouble(), value.getAsDouble());
+                } catch (NumberFormatException ex) {
+                    return op == Operator.NE;
+                }
+            } else if (value.getAsJsonPrimitive().isBoolean()) {
+                if (!field.getAsJsonPrimitive().isBoolean() && !field.getAsJsonPrimitive().isString()) {
+                    return op == Operator.NE;
+                }
+                c = Boolean.compare(Boolean.parseBoolean(field.getAsString()), value.getAsBoolean());
+            } else {
+                c = field.getAsString().compareTo(value.getAsString());
+            }
+            switch (op) {
+                case EQ:
+                    return c == 0;
+                case NE:
+                    return c != 0;
+                case GT:
+                    return c > 0;
+                case GE:
+                    return c >= 0;
+                case LT:
+                    return c < 0;
+                default:
+                    return c <= 0;
+            }
+        }
+    }
+}
@@ -0,0 +1,280 @@
+//    HelloBridge is a bridge from HTTP to MQTT
+//    Copyright (C) 2019 Adrián Romero Corchado.
+//
+//    This file is part of HelloBridge.
+//
+//    HelloIot is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    HelloIot is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with HelloIot.  If not, see <http://www.gnu.org/licenses/>.
+//
+package com.adr.hellobridge;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Registry of counters, gauges and latency histograms written in the
+ * Prometheus text format. Metrics are registered at startup; recording is
+ * lock free and does not allocate.
+ *
+ * @author adrian
+ */
+public class Metrics {
+
+    // Histogram buckets upper bounds in nanoseconds, for in memory work from 1 microsecond to 10 milliseconds
+    public static final long[] ROUTING_BUCKETS = {
+        1_000L, 2_500L, 5_000L,
+        10_000L, 25_000L, 50_000L,
+        100_000L, 250_000L, 500_000L,
+        1_000_000L, 2_500_000L, 5_000_000L, 10_000_000L
+    };
+
+    // Requests to the broker or from clients, from 100 microseconds to 10 seconds
+    public static final long[] REQUEST_BUCKETS = {
+        100_000L, 250_000L, 500_000L,
+        1_000_000L, 2_500_000L, 5_000_000L,
+        10_000_000L, 25_000_000L, 50_000_000L,
+        100_000_000L, 250_000_000L, 500_000_000L,
+        1_000_000_000L, 2_500_000_000L, 5_000_000_000L, 10_000_000_000L
+    };
+
+    // Calls to remote webhooks, from 1 millisecond up to the default call timeout of 30 seconds
+    public static final long[] WEBHOOK_BUCKETS = {
+        1_000_000L, 2_500_000L, 5_000_000L,
+        10_000_000L, 25_000_000L, 50_000_000L,
+        100_000_000L, 250_000_000L, 500_000_000L,
+        1_000_000_000L, 2_500_000_000L, 5_000_000_000L,
+        10_000_000_000L, 30_000_000_000L
+    };
+
+    private final Map<String, Family> families = new LinkedHashMap<>();
+
+    public synchronized Counter counter(String name, String help, String... labels) {
+        Counter c = new Counter();
+        family(name, help, "counter").add(labels, c);
+        return c;
+    }
+
+    public synchronized void counter(String name, String help, LongSupplier value, String... labels) {
+        family(name, help, "counter").add(labels, new Gauge(value));
+    }
+
+    public synchronized Histogram histogram(String name, String help, long[] buckets, String... labels) {
+        Histogram h = new Histogram(buckets);
+        family(name, help, "histogram").add(labels, h);
+        return h;
+    }
+
+    public synchronized void gauge(String name, String help, LongSupplier value, String... labels) {
+        family(name, help, "gauge").add(labels, new Gauge(value));
+    }
+
+    // Removes a metric of a component that is replaced, to register the new one with the same labels
+    public synchronized void remove(String name, String... labels) {
+        Family f = families.get(name);
+        if (f != null) {
+            f.remove(labels);
+            if (f.metrics.isEmpty()) {
+                families.remove(name);
+            }
+        }
+    }
+
+    public synchronized void write(StringBuilder out) {
+        for (Map.Entry<String, Family> e : families.entrySet()) {
+            String name = e.getKey();
+            Family f = e.getValue();
+            out.append("# HELP ").append(name).append(' ').append(f.help).append('\n');
+            out.append("# TYPE ").append(name).append(' ').append(f.type).append('\n');
+            for (int i = 0; i < f.metrics.size(); i++) {
+                f.metrics.get(i).write(out, name, f.labels.get(i));
+            }
+        }
+    }
+
+    private Family family(String name, String help, String type) {
+        Family f = families.get(name);
+        if (f == null) {
+            f = new Family(help, type);
+            families.put(name, f);
+        } else if (!f.type.equals(type)) {
+            throw new IllegalArgumentException("Metric already registered with another type: " + name);
+        }
+        return f;
+    }
+
+    private static String formatLabels(String[] labels) {
+        if (labels.length % 2 != 0) {
+            throw new IllegalArgumentException("Labels must be name and value pairs.");
+        }
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < labels.length; i += 2) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(labels[i]).append("=\"");
+            String value = labels[i + 1];
+            for (int j = 0; j < value.length(); j++) {
+                char c = value.charAt(j);
+                if (c == '\\' || c == '"') {
+                    sb.append('\\').append(c);
+                } else if (c == '\n') {
+                    sb.append("\\n");
+                } else {
+                    sb.append(c);
+                }
+            }
+            sb.append('"');
+        }
+        return sb.toString();
+    }
+
+    private static void writeName(StringBuilder out, String name, String suffix, String labels, String extra) {
+        out.append(name).append(suffix);
+        if (!labels.isEmpty() || extra != null) {
+            out.append('{').append(labels);
+            if (extra != null) {
+                if (!labels.isEmpty()) {
+                    out.append(',');
+                }
+                out.append(extra);
+            }
+            out.append('}');
+        }
+        out.append(' ');
+    }
+
+    private static String seconds(long nanos) {
+        return Double.toString(nanos / 1e9);
+    }
+
+    private static class Family {
+
+        private final String help;
+        private final String type;
+        private final List<String> labels = new ArrayList<>();
+        private final List<Metric> metrics = new ArrayList<>();
+
+        Family(String help, String type) {
+            this.help = help;
+            this.type = type;
+        }
+
+        void add(String[] l, Metric m) {
+            String formatted = formatLabels(l);
+            if (labels.contains(formatted)) {
+                throw new IllegalArgumentException("Metric already registered with labels: " + formatted);
+            }
+            labels.add(formatted);
+            metrics.add(m);
+        }
+
+        void remove(String[] l) {
+            int i = labels.indexOf(formatLabels(l));
+            if (i >= 0) {
+                labels.remove(i);
+                metrics.remove(i);
+            }
+        }
+    }
+
+    private interface Metric {
+
+        void write(StringBuilder out, String name, String labels);
+    }
+
+    public static class Counter implements Metric {
+
+        private final LongAdder value = new LongAdder();
+
+        public void inc() {
+            value.increment();
+        }
+
+        public void add(long n) {
+            value.add(n);
+        }
+
+        public long get() {
+            return value.sum();
+        }
+
+        @Override
+        public void write(StringBuilder out, String name, String labels) {
+            writeName(out, name, "", labels, null);
+            out.append(value.sum()).append('\n');
+        }
+    }
+
+    // Value read when written, for gauges and counters kept elsewhere
+    private static class Gauge implements Metric {
+
+        private final LongSupplier value;
+
+        Gauge(LongSupplier value) {
+            this.value = value;
+        }
+
+        @Override
+        public void write(StringBuilder out, String name, String labels) {
+            writeName(out, name, "", labels, null);
+            out.append(value.getAsLong()).append('\n');
+        }
+    }
+
+    public static class Histogram implements Metric {
+
+        private final long[] bounds;
+        private final LongAdder[] buckets;
+        private final LongAdder sum = new LongAdder();
+
+        Histogram(long[] bounds) {
+            this.bounds = bounds.clone();
+            buckets = new LongAdder[bounds.length + 1];
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        public void record(long nanos) {
+            int i = 0;
+            while (i < bounds.length && nanos > bounds[i]) {
+                i++;
+            }
+            buckets[i].increment();
+            sum.add(nanos);
+        }
+
+        public void recordSince(long startnanos) {
+            record(System.nanoTime() - startnanos);
+        }
+
+        @Override
+        public void write(StringBuilder out, String name, String labels) {
+            long cumulative = 0L;
+            for (int i = 0; i < buckets.length; i++) {
+                cumulative += buckets[i].sum();
+                String le = i < bounds.length ? seconds(bounds[i]) : "+Inf";
+                writeName(out, name, "_bucket", labels, "le=\"" + le + "\"");
+                out.append(cumulative).append('\n');
+            }
+            writeName(out, name, "_sum", labels, null);
+            out.append(seconds(sum.sum())).append('\n');
+            writeName(out, name, "_count", labels, null);
+            out.append(cumulative).append('\n');
+        }
+    }
+}
@@ -0,0 +1,249 @@
+//    HelloBridge is a bridge from HTTP to MQTT
+//    Copyright (C) 2019 Adrián Romero Corchado.
+//
+//    This file is part of HelloBridge.
+//
+//    HelloIot is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    HelloIot is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with HelloIot.  If not, see <http://www.gnu.org/licenses/>.
+//
+package com.adr.hellobridge;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import org.eclipse.paho.client.mqttv3.MqttTopic;
+import spark.Request;
+
+/**
+ * Reads publish requests streaming from the request input, without building
+ * the body as a String or a JSON tree. Compressed bodies are decompressed
+ * while read.
+ *
+ * @author adrian
+ */
+public class PublishReader {
+
+    public static final String OCTET_STREAM = "application/octet-stream";
+    public static final String HEADER_QOS = "X-MQTT-QoS";
+    public static final String HEADER_RETAINED = "X-MQTT-Retained";
+
+    private PublishReader() {
+    }
+
+    public static InputStream open(Request request, long maxsize) throws IOException {
+        long length = request.raw().getContentLengthLong();
+        if (length > maxsize) {
+            throw new TooLargeException(maxsize);
+        }
+        InputStream in = new LimitedInputStream(request.raw().getInputStream(), maxsize);
+        String encoding = request.headers("Content-Encoding");
+        if (Compression.isEncoded(encoding)) {
+            // The decompressed body has the same limit, small compressed bodies may expand to anything
+            in = new LimitedInputStream(Compression.decode(encoding, in), maxsize);
+        }
+        return in;
+    }
+
+    public static JsonReader createJsonReader(InputStream in) {
+        // Strict, a single JSON value
+        return new JsonReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+    }
+
+    public static JsonReader createBulkReader(InputStream in) {
+        JsonReader reader = createJsonReader(in);
+        // Lenient to accept several top level values for NDJSON
+        reader.setLenient(true);
+        return reader;
+    }
+
+    public static EventMessage readJsonMessage(InputStream in, String topic) throws IOException {
+        JsonReader reader = createJsonReader(in);
+        EventMessage message = readMessage(reader, topic);
+        if (reader.peek() != JsonToken.END_DOCUMENT) {
+            throw new IllegalArgumentException("Body must contain a single JSON object.");
+        }
+        return message;
+    }
+
+    public static EventMessage readMessage(JsonReader reader, String topic) throws IOException {
+
+        if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+            reader.skipValue();
+            throw new IllegalArgumentException("Message must be a JSON object.");
+        }
+
+        String messagetopic = topic;
+        byte[] message = null;
+        int qos = 0;
+        boolean retained = false;
+        String error = null;
+
+        // The whole object is always consumed, so the reader can continue with the next value
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            try {
+                switch (name) {
+                    case "topic":
+                        if (topic == null) {
+                            messagetopic = reader.nextString();
+                        } else {
+                            reader.skipValue();
+                        }
+                        break;
+                    case "message":
+                        message = SubscriptionDefinition.parseMessage(reader.nextString());
+                        break;
+                    case "qos":
+                        qos = reader.nextInt();
+                        break;
+                    case "retained":
+                        retained = reader.nextBoolean();
+                        break;
+                    default:
+                        reader.skipValue();
+                }
+            } catch (IllegalStateException | NumberFormatException ex) {
+                // Unexpected token type or invalid number, not consumed
+                reader.skipValue();
+                error = "Invalid property: " + name;
+            } catch (IllegalArgumentException ex) {
+                // Invalid base64 value, already consumed
+                error = "Invalid property: " + name;
+            }
+        }
+        reader.endObject();
+
+        if (error != null) {
+            throw new IllegalArgumentException(error);
+        }
+        if (message == null) {
+            throw new IllegalArgumentException("Message property is required.");
+        }
+        validate(messagetopic, qos);
+        return new EventMessage(messagetopic, message, qos, retained);
+    }
+
+    public static boolean isBinary(Request request) {
+        String contenttype = request.contentType();
+        return contenttype != null && contenttype.startsWith(OCTET_STREAM);
+    }
+
+    public static EventMessage readBinaryMessage(Request request, InputStream in, String topic) throws IOException {
+
+        String qosheader = request.headers(HEADER_QOS);
+        int qos = qosheader == null ? 0 : Integer.parseInt(qosheader.trim());
+        validate(topic, qos);
+        boolean retained = Boolean.parseBoolean(request.headers(HEADER_RETAINED));
+
+        // The Content-Length of compressed bodies is not the length of the message
+        long length = Compression.isEncoded(request.headers("Content-Encoding")) ? -1L : request.raw().getContentLengthLong();
+        return new EventMessage(topic, readBytes(in, length), qos, retained);
+    }
+
+    // Rejected here, Paho throws IllegalArgumentException when publishing
+    private static void validate(String topic, int qos) {
+        if (topic == null || topic.isEmpty()) {
+            throw new IllegalArgumentException("Empty topic.");
+        }
+        if (qos < 0 || qos > 2) {
+            throw new IllegalArgumentException("Invalid QoS: " + qos);
+        }
+        // Wildcards are not allowed in the topics of published messages
+        MqttTopic.validate(topic, false);
+    }
+
+    private static byte[] readBytes(InputStream in, long length) throws IOException {
+        if (length >= 0) {
+            // Known length, read straight into the payload
+            byte[] result = new byte[(int) length];
+            int offset = 0;
+            while (offset < result.length) {
+                int n = in.read(result, offset, result.length - offset);
+                if (n < 0) {
+                    throw new EOFException("Request body shorter than its Content-Length.");
+                }
+                offset += n;
+            }
+            return result;
+        } else {
+            // Chunked request
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) >= 0) {
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        }
+    }
+
+    public static class TooLargeException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        public TooLargeException(long maxsize) {
+            super("Request body exceeds the maximum size of " + maxsize + " bytes.");
+        }
+    }
+
+    private static class LimitedInputStream extends FilterInputStream {
+
+        private long remaining;
+        private final long maxsize;
+
+        LimitedInputStream(InputStream in, long maxsize) {
+            super(in);
+            this.remaining = maxsize;
+            this.maxsize = maxsize;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                consume(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                consume(n);
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            consume(skipped);
+            return skipped;
+        }
+
+        private void consume(long n) throws TooLargeException {
+            remaining -= n;
+            if (remaining < 0) {
+                throw new TooLargeException(maxsize);
+            }
+        }
+    }
+}
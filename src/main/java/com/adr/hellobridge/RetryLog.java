@@ -0,0 +1,489 @@
+//    HelloBridge is a bridge from HTTP to MQTT
+//    Copyright (C) 2019 Adrián Romero Corchado.
+//
+//    This file is part of HelloBridge.
+//
+//    HelloIot is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    HelloIot is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with HelloIot.  If not, see <http://www.gnu.org/licenses/>.
+//
+package com.adr.hellobridge;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Durable queue of webhook deliveries. Entries are appended to memory mapped
+ * segment files and replayed by a background thread until the deliverer
+ * accepts them. Entries are replayed in order for each subscription and URL,
+ * each with its own exponential backoff, so a failing webhook does not delay
+ * the deliveries to the others. Up to a window of entries is read ahead into
+ * memory. Entries that exceed the maximum number of attempts or the maximum
+ * age are discarded. Segments are deleted once all their entries are
+ * delivered.
+ *
+ * Records are stored in {@link SegmentFile} files. The position of the first
+ * entry not delivered is kept in the <code>commit</code> file, the entries
+ * after it delivered before a restart are delivered again.
+ *
+ * @author adrian
+ */
+public class RetryLog {
+
+    private final static Logger logger = Logger.getLogger(RetryLog.class.getName());
+
+    private final File dir;
+    private final int segmentsize;
+    private final int maxsegments;
+    private final long fsyncinterval;
+    private final long initialbackoff;
+    private final long maxbackoff;
+    private final int maxattempts;
+    private final long maxage;
+    private final int window;
+    private final Predicate<Entry> deliverer;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition appended = lock.newCondition();
+    private final TreeMap<Long, SegmentFile> segments = new TreeMap<>();
+    private SegmentFile writesegment;
+    private SegmentFile readsegment;
+    private int readposition;
+    private long pending = 0L;
+    // Entries read and not delivered, by location and by subscription and URL
+    private final TreeSet<Long> outstanding = new TreeSet<>();
+    private final Map<String, Lane> lanes = new HashMap<>();
+
+    private MappedByteBuffer commit;
+    private FileChannel commitchannel;
+    private ScheduledExecutorService fsync;
+    private Thread replayer;
+    private volatile boolean closed = false;
+
+    public RetryLog(File dir, int segmentsize, int maxsegments, long fsyncinterval, long initialbackoff, long maxbackoff, int maxattempts, long maxage, int window, Predicate<Entry> deliverer) {
+        this.dir = dir;
+        this.segmentsize = segmentsize;
+        this.maxsegments = maxsegments;
+        this.fsyncinterval = fsyncinterval;
+        this.initialbackoff = initialbackoff;
+        this.maxbackoff = maxbackoff;
+        this.maxattempts = maxattempts;
+        this.maxage = maxage;
+        this.window = window;
+        this.deliverer = deliverer;
+    }
+
+    public void open() throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create retry log directory: " + dir);
+        }
+
+        for (Long id : SegmentFile.list(dir).keySet()) {
+            segments.put(id, new SegmentFile(dir, id, segmentsize));
+        }
+
+        commitchannel = new RandomAccessFile(new File(dir, "commit"), "rw").getChannel();
+        commit = commitchannel.map(FileChannel.MapMode.READ_WRITE, 0, 16);
+        long commitsegment = commit.getLong(0);
+        int commitposition = (int) commit.getLong(8);
+
+        // Discard segments already delivered
+        while (!segments.isEmpty() && segments.firstKey() < commitsegment) {
+            segments.pollFirstEntry().getValue().delete();
+        }
+
+        if (segments.isEmpty()) {
+            writesegment = newSegment(commitsegment);
+            readsegment = writesegment;
+            readposition = 0;
+        } else {
+            writesegment = segments.lastEntry().getValue();
+            writesegment.recover((payload, offset) -> {
+            });
+            readsegment = segments.firstEntry().getValue();
+            readposition = readsegment.getId() == commitsegment ? commitposition : 0;
+            for (SegmentFile s : segments.values()) {
+                pending += s.count(s == readsegment ? readposition : 0);
+            }
+        }
+        storeCommit();
+
+        if (pending > 0) {
+            logger.log(Level.INFO, "Retry log recovered {0} pending deliveries.", pending);
+        }
+
+        fsync = Threads.newScheduler("hellobridge-retry-fsync");
+        fsync.scheduleWithFixedDelay(this::force, fsyncinterval, fsyncinterval, TimeUnit.MILLISECONDS);
+
+        replayer = new Thread(this::replay, "hellobridge-retry");
+        replayer.setDaemon(true);
+        replayer.start();
+    }
+
+    public boolean append(String subscription, String url, byte[] body) {
+
+        byte[] payload = Entry.encode(subscription, url, System.currentTimeMillis(), body);
+        if (payload.length + SegmentFile.HEADER > segmentsize) {
+            logger.log(Level.WARNING, "Delivery for subscription {0} too large for the retry log, discarded.", subscription);
+            return false;
+        }
+
+        lock.lock();
+        try {
+            if (closed) {
+                return false;
+            }
+            if (!writesegment.fits(payload.length)) {
+                if (segments.size() >= maxsegments) {
+                    logger.log(Level.WARNING, "Retry log full, delivery for subscription {0} discarded.", subscription);
+                    return false;
+                }
+                writesegment.force();
+                writesegment = newSegment(writesegment.getId() + 1);
+            }
+            writesegment.write(payload);
+            pending++;
+            appended.signalAll();
+            return true;
+        } catch (IOException ex) {
+            logger.log(Level.WARNING, "Cannot append delivery to the retry log.", ex);
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getPending() {
+        lock.lock();
+        try {
+            return pending;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            appended.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        if (replayer != null) {
+            replayer.interrupt();
+            try {
+                replayer.join(1000L);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (fsync != null) {
+            fsync.shutdown();
+        }
+        lock.lock();
+        try {
+            force();
+            for (SegmentFile s : segments.values()) {
+                s.close();
+            }
+            if (commitchannel != null) {
+                commitchannel.close();
+            }
+        } catch (IOException ex) {
+            logger.log(Level.WARNING, "Cannot close the retry log.", ex);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void replay() {
+        try {
+            while (!closed) {
+                Lane lane = next();
+                if (lane == null) {
+                    continue;
+                }
+                Entry entry = lane.entries.peek();
+                boolean delivered;
+                try {
+                    delivered = deliverer.test(entry);
+                } catch (RuntimeException ex) {
+                    logger.log(Level.SEVERE, "Unexpected error replaying the retry log.", ex);
+                    delivered = false;
+                }
+                lane.attempts++;
+                if (delivered) {
+                    acknowledge(lane);
+                } else if (isExpired(entry, lane.attempts)) {
+                    logger.log(Level.WARNING, "Delivery for subscription {0} discarded after {1} attempts.", new Object[]{entry.subscription, lane.attempts});
+                    acknowledge(lane);
+                } else {
+                    logger.log(Level.FINE, "Retry of delivery for subscription {0} failed, waiting {1} ms.", new Object[]{entry.subscription, lane.backoff});
+                    lane.due = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(lane.backoff);
+                    lane.backoff = Math.min(lane.backoff * 2, maxbackoff);
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private boolean isExpired(Entry entry, int attempts) {
+        return (maxattempts > 0 && attempts >= maxattempts)
+                || (maxage > 0L && System.currentTimeMillis() - entry.time >= maxage);
+    }
+
+    /**
+     * Waits until an entry is due.
+     *
+     * @return the lane of the entry or null if the log is closed
+     */
+    private Lane next() throws InterruptedException {
+        lock.lock();
+        try {
+            for (;;) {
+                if (closed) {
+                    return null;
+                }
+                readAhead();
+                long now = System.nanoTime();
+                Lane first = null;
+                for (Lane l : lanes.values()) {
+                    if (first == null || l.due - first.due < 0L) {
+                        first = l;
+                    }
+                }
+                if (first != null && first.due - now <= 0L) {
+                    return first;
+                }
+                long wait = first == null ? TimeUnit.SECONDS.toNanos(1L) : Math.min(first.due - now, TimeUnit.SECONDS.toNanos(1L));
+                appended.awaitNanos(wait);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void readAhead() {
+        boolean moved = false;
+        while (outstanding.size() < window) {
+            if (readsegment == writesegment && readposition >= writesegment.getPosition()) {
+                break;
+            }
+            byte[] payload = readsegment.read(readposition);
+            if (payload != null) {
+                int position = readposition;
+                readposition += SegmentFile.HEADER + payload.length;
+                moved = true;
+                Entry entry;
+                try {
+                    entry = Entry.decode(readsegment.getId(), position, payload);
+                } catch (IllegalStateException ex) {
+                    logger.log(Level.SEVERE, "Corrupted record in retry log segment " + readsegment.getFile() + ", discarded.", ex);
+                    pending--;
+                    continue;
+                }
+                outstanding.add(entry.location());
+                lanes.computeIfAbsent(entry.subscription + " " + entry.url, k -> new Lane()).entries.add(entry);
+                continue;
+            }
+            moved = true;
+            if (readsegment == writesegment) {
+                // The write segment is valid up to its position, skip the rest of the segment
+                logger.log(Level.SEVERE, "Corrupted retry log segment {0}, pending deliveries discarded.", readsegment.getFile());
+                readposition = writesegment.getPosition();
+                pending = outstanding.size();
+                continue;
+            }
+            // End of segment
+            readsegment = segments.higherEntry(readsegment.getId()).getValue();
+            readposition = 0;
+        }
+        if (moved) {
+            storeCommit();
+        }
+    }
+
+    private void acknowledge(Lane lane) {
+        lock.lock();
+        try {
+            Entry entry = lane.entries.poll();
+            lane.attempts = 0;
+            lane.backoff = initialbackoff;
+            // Behind the other lanes already due
+            lane.due = System.nanoTime();
+            if (lane.entries.isEmpty()) {
+                lanes.remove(entry.subscription + " " + entry.url);
+            }
+            outstanding.remove(entry.location());
+            pending--;
+            storeCommit();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void storeCommit() {
+        // The first entry not delivered, or the next entry to read
+        long commitsegment;
+        int commitposition;
+        if (outstanding.isEmpty()) {
+            commitsegment = readsegment.getId();
+            commitposition = readposition;
+        } else {
+            long location = outstanding.first();
+            commitsegment = location >>> 32;
+            commitposition = (int) location;
+        }
+        commit.putLong(0, commitsegment);
+        commit.putLong(8, commitposition);
+
+        // Segments before the commit are delivered
+        while (segments.firstKey() < commitsegment) {
+            SegmentFile done = segments.pollFirstEntry().getValue();
+            try {
+                done.close();
+            } catch (IOException ex) {
+                logger.log(Level.SEVERE, "Cannot close retry log segment: " + done.getFile(), ex);
+            }
+            done.delete();
+        }
+    }
+
+    private void force() {
+        lock.lock();
+        try {
+            if (writesegment != null) {
+                writesegment.force();
+            }
+            if (commit != null) {
+                commit.force();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private SegmentFile newSegment(long id) throws IOException {
+        SegmentFile s = new SegmentFile(dir, id, segmentsize);
+        segments.put(id, s);
+        return s;
+    }
+
+    /**
+     * Entries of a subscription and URL, replayed in order.
+     */
+    private class Lane {
+
+        private final ArrayDeque<Entry> entries = new ArrayDeque<>();
+        private int attempts = 0;
+        private long backoff = initialbackoff;
+        private long due = System.nanoTime();
+    }
+
+    /**
+     * A webhook delivery stored in the log.
+     */
+    public static class Entry {
+
+        private final String subscription;
+        private final String url;
+        private final long time;
+        private final byte[] body;
+        // Position of the record
+        private final long segment;
+        private final int position;
+
+        private Entry(String subscription, String url, long time, byte[] body, long segment, int position) {
+            this.subscription = subscription;
+            this.url = url;
+            this.time = time;
+            this.body = body;
+            this.segment = segment;
+            this.position = position;
+        }
+
+        private long location() {
+            return segment << 32 | position;
+        }
+
+        public String getSubscription() {
+            return subscription;
+        }
+
+        public String getUrl() {
+            return url;
+        }
+
+        public long getTime() {
+            return time;
+        }
+
+        public byte[] getBody() {
+            return body;
+        }
+
+        private static byte[] encode(String subscription, String url, long time, byte[] body) {
+            try {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream(body.length + url.length() + subscription.length() + 24);
+                DataOutputStream out = new DataOutputStream(bytes);
+                out.writeUTF(subscription);
+                out.writeUTF(url);
+                out.writeLong(time);
+                out.writeInt(body.length);
+                out.write(body);
+                out.flush();
+                return bytes.toByteArray();
+            } catch (IOException ex) {
+                throw new IllegalStateException(ex);
+            }
+        }
+
+        private static Entry decode(long segment, int position, byte[] payload) {
+            try {
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+                String subscription = in.readUTF();
+                String url = in.readUTF();
+                long time = in.readLong();
+                int length = in.readInt();
+                if (length < 0 || length > payload.length) {
+                    throw new IOException("Invalid body length: " + length);
+                }
+                byte[] body = new byte[length];
+                in.readFully(body);
+                return new Entry(subscription, url, time, body, segment, position);
+            } catch (IOException ex) {
+                throw new IllegalStateException(ex);
+            }
+        }
+    }
+}
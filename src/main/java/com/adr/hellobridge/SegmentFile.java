@@ -0,0 +1,191 @@
+//    HelloBridge is a bridge from HTTP to MQTT
+//    Copyright (C) 2019 Adrián Romero Corchado.
+//
+//    This file is part of HelloBridge.
+//
+//    HelloIot is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    HelloIot is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with HelloIot.  If not, see <http://www.gnu.org/licenses/>.
+//
+package com.adr.hellobridge;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.TreeMap;
+import java.util.function.ObjIntConsumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Memory mapped file of records, used by the retry log and the MQTT
+ * persistence. Records are appended at the position of the segment.
+ *
+ * Each record is <code>[int length][int crc][payload]</code>. The length is
+ * written last, so a partial record is never valid, and a zero length or a
+ * wrong checksum marks the end of the data of a segment.
+ *
+ * @author adrian
+ */
+public class SegmentFile {
+
+    private final static Logger logger = Logger.getLogger(SegmentFile.class.getName());
+
+    public static final int HEADER = 8;
+
+    private final long id;
+    private final File file;
+    private final int size;
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private int position = 0;
+
+    public SegmentFile(File dir, long id, int size) throws IOException {
+        this.id = id;
+        this.file = new File(dir, String.format("%020d.seg", id));
+        this.size = size;
+        this.channel = new RandomAccessFile(file, "rw").getChannel();
+        try {
+            this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } catch (IOException ex) {
+            channel.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Identifiers of the segments of a directory, in order.
+     */
+    public static TreeMap<Long, File> list(File dir) {
+        TreeMap<Long, File> result = new TreeMap<>();
+        File[] files = dir.listFiles((d, name) -> name.endsWith(".seg"));
+        if (files != null) {
+            for (File f : files) {
+                result.put(Long.parseLong(f.getName().substring(0, f.getName().length() - 4)), f);
+            }
+        }
+        return result;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public int getPosition() {
+        return position;
+    }
+
+    public boolean fits(int length) {
+        return position + HEADER + length <= size;
+    }
+
+    /**
+     * Buffer to write the payload of the next record, completed with
+     * {@link #commit(int)}.
+     */
+    public ByteBuffer begin(int length) {
+        ByteBuffer b = buffer.duplicate();
+        b.position(position + HEADER);
+        b.limit(position + HEADER + length);
+        return b;
+    }
+
+    /**
+     * Completes the record written to the buffer of {@link #begin(int)}.
+     *
+     * @return the offset of the record
+     */
+    public int commit(int length) {
+        ByteBuffer b = begin(length);
+        CRC32 crc = new CRC32();
+        crc.update(b);
+        buffer.putInt(position + 4, (int) crc.getValue());
+        buffer.putInt(position, length);
+        int offset = position;
+        position += HEADER + length;
+        return offset;
+    }
+
+    public int write(byte[] payload) {
+        begin(payload.length).put(payload);
+        return commit(payload.length);
+    }
+
+    /**
+     * The payload of the record at the offset, or null if there is no valid
+     * record.
+     */
+    public byte[] read(int offset) {
+        if (offset + HEADER > size) {
+            return null;
+        }
+        int length = buffer.getInt(offset);
+        if (length <= 0 || offset + HEADER + length > size) {
+            return null;
+        }
+        byte[] payload = new byte[length];
+        ByteBuffer b = buffer.duplicate();
+        b.position(offset + HEADER);
+        b.get(payload);
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, length);
+        return (int) crc.getValue() == buffer.getInt(offset + 4) ? payload : null;
+    }
+
+    /**
+     * Reads the valid records, sets the position after the last one and
+     * clears anything after it.
+     */
+    public void recover(ObjIntConsumer<byte[]> records) {
+        byte[] payload;
+        while ((payload = read(position)) != null) {
+            records.accept(payload, position);
+            position += HEADER + payload.length;
+        }
+        for (int i = position; i < size; i++) {
+            buffer.put(i, (byte) 0);
+        }
+    }
+
+    public long count(int offset) {
+        long count = 0;
+        byte[] payload;
+        while ((payload = read(offset)) != null) {
+            offset += HEADER + payload.length;
+            count++;
+        }
+        return count;
+    }
+
+    public void force() {
+        buffer.force();
+    }
+
+    public void close() throws IOException {
+        buffer.force();
+        channel.close();
+    }
+
+    public void delete() {
+        if (!file.delete()) {
+            logger.log(Level.WARNING, "Cannot delete segment: {0}", file);
+        }
+    }
+}
@@ -0,0 +1,166 @@
+//    HelloBridge is a bridge from HTTP to MQTT
+//    Copyright (C) 2019 Adrián Romero Corchado.
+//
+//    This file is part of HelloBridge.
+//
+//    HelloIot is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    HelloIot is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with HelloIot.  If not, see <http://www.gnu.org/licenses/>.
+//
+package com.adr.hellobridge;
+
+import com.google.gson.JsonObject;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Streams of received messages to HTTP clients. Each client has a topic
+ * filter and a bounded queue, and clients that do not keep up and fill their
+ * queue are disconnected, so a slow client never delays the others or the
+ * webhooks.
+ *
+ * @author adrian
+ */
+public class StreamHub {
+
+    private final static Logger logger = Logger.getLogger(StreamHub.class.getName());
+
+    private final int capacity;
+    private final List<Client> clients = new ArrayList<>();
+    // Rebuilt when clients come and go, matching does not lock
+    private volatile TopicTrie<Client> routes = new TopicTrie<>();
+    private final BiConsumer<Client, EventMessage> offer = this::offer;
+    private final Metrics.Counter evicted;
+
+    public StreamHub(int capacity, Metrics metrics) {
+        this.capacity = capacity;
+        evicted = metrics.counter("hellobridge_stream_evicted_total", "Stream clients disconnected because their queue was full.");
+        metrics.gauge("hellobridge_stream_clients", "Connected stream clients.", this::size);
+    }
+
+    public Client subscribe(String filter, int format, Authenticator.Grant grant) {
+        if (filter == null || filter.isEmpty()) {
+            throw new IllegalArgumentException("Empty topic filter.");
+        }
+        // Fails on invalid filters
+        new TopicTrie<Client>().add(filter, null);
+
+        Client client = new Client(filter, format, grant, capacity);
+        synchronized (clients) {
+            clients.add(client);
+            rebuild();
+        }
+        return client;
+    }
+
+    public void unsubscribe(Client client) {
+        client.close();
+        synchronized (clients) {
+            if (clients.remove(client)) {
+                rebuild();
+            }
+        }
+    }
+
+    public void distribute(EventMessage message) {
+        routes.match(message.getTopic(), offer, message);
+    }
+
+    public int size() {
+        synchronized (clients) {
+            return clients.size();
+        }
+    }
+
+    private void offer(Client client, EventMessage message) {
+        if (!client.grant.allows(message.getTopic())) {
+            // Matches the filter, but out of the topics of the client token
+            return;
+        }
+        if (!client.queue.offer(message)) {
+            evicted.inc();
+            logger.log(Level.WARNING, "Stream client disconnected, queue full for filter: {0}", client.filter);
+            unsubscribe(client);
+        }
+    }
+
+    private void rebuild() {
+        TopicTrie<Client> trie = new TopicTrie<>();
+        for (Client c : clients) {
+            trie.add(c.filter, c);
+        }
+        routes = trie;
+    }
+
+    /**
+     * A connected client, its messages are taken by the thread that sends
+     * them.
+     */
+    public static class Client {
+
+        // Wakes up the sender when closed
+        private static final EventMessage CLOSED = new EventMessage("", new byte[0]);
+
+        private final String filter;
+        private final int format;
+        private final Authenticator.Grant grant;
+        private final BlockingQueue<EventMessage> queue;
+        private volatile boolean closed = false;
+
+        Client(String filter, int format, Authenticator.Grant grant, int capacity) {
+            this.filter = filter;
+            this.format = format;
+            this.grant = grant;
+            this.queue = new ArrayBlockingQueue<>(capacity);
+        }
+
+        // Next message, or null after the timeout or when closed
+        public EventMessage poll(long timeout) throws InterruptedException {
+            if (closed) {
+                return null;
+            }
+            EventMessage message = queue.poll(timeout, TimeUnit.MILLISECONDS);
+            return message == CLOSED ? null : message;
+        }
+
+        public boolean isClosed() {
+            return closed;
+        }
+
+        public String format(EventMessage message) {
+            JsonObject result = new JsonObject();
+            result.addProperty("topic", message.getTopic());
+            result.addProperty("message", SubscriptionDefinition.formatMessage(message.getMessage(), format));
+            if (message.getQoS() > 0) {
+                result.addProperty("qos", message.getQoS());
+            }
+            if (message.isRetained()) {
+                result.addProperty("retained", true);
+            }
+            return result.toString();
+        }
+
+        void close() {
+            if (!closed) {
+                closed = true;
+                queue.clear();
+                queue.offer(CLOSED);
+            }
+        }
+    }
+}
@@ -0,0 +1,117 @@
+//    HelloBridge is a bridge from HTTP to MQTT
+//    Copyright (C) 2019 Adrián Romero Corchado.
+//
+//    This file is part of HelloBridge.
+//
+//    HelloIot is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    HelloIot is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with HelloIot.  If not, see <http://www.gnu.org/licenses/>.
+//
+package com.adr.hellobridge;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.StatusCode;
+import org.eclipse.jetty.websocket.api.annotations.OnWebSocketClose;
+import org.eclipse.jetty.websocket.api.annotations.OnWebSocketConnect;
+import org.eclipse.jetty.websocket.api.annotations.WebSocket;
+
+/**
+ * WebSocket endpoint of the message streams. The topic filter and format are
+ * query parameters of the connection request, and each connection has a
+ * thread that sends its messages.
+ *
+ * @author adrian
+ */
+@WebSocket
+public class StreamSocket {
+
+    private final static Logger logger = Logger.getLogger(StreamSocket.class.getName());
+    private static final ByteBuffer PING = ByteBuffer.allocate(0);
+
+    private final StreamHub streams;
+    private final Authenticator authenticator;
+    private final Threads threads;
+    private final long heartbeat;
+    private final Map<Session, StreamHub.Client> clients = new ConcurrentHashMap<>();
+    private final AtomicInteger counter = new AtomicInteger();
+
+    public StreamSocket(StreamHub streams, Authenticator authenticator, Threads threads, long heartbeat) {
+        this.streams = streams;
+        this.authenticator = authenticator;
+        this.threads = threads;
+        this.heartbeat = heartbeat;
+    }
+
+    @OnWebSocketConnect
+    public void connected(Session session) {
+        // Upgrade requests are authorized by the filter of the other routes, the grant is taken again from the cache
+        Authenticator.Grant grant = authenticator.authenticate(session.getUpgradeRequest().getHeader("Authorization"));
+        if (grant == null) {
+            session.close(StatusCode.POLICY_VIOLATION, "Unauthorized.");
+            return;
+        }
+        StreamHub.Client client;
+        try {
+            Map<String, List<String>> params = session.getUpgradeRequest().getParameterMap();
+            client = streams.subscribe(getParameter(params, "filter", null), Integer.parseInt(getParameter(params, "format", "0")), grant);
+        } catch (IllegalArgumentException ex) {
+            session.close(StatusCode.BAD_DATA, ex.getMessage());
+            return;
+        }
+        clients.put(session, client);
+
+        threads.newThread("hellobridge-stream-" + counter.incrementAndGet(), () -> send(session, client)).start();
+    }
+
+    @OnWebSocketClose
+    public void closed(Session session, int status, String reason) {
+        StreamHub.Client client = clients.remove(session);
+        if (client != null) {
+            streams.unsubscribe(client);
+        }
+    }
+
+    private void send(Session session, StreamHub.Client client) {
+        try {
+            while (session.isOpen() && !client.isClosed()) {
+                EventMessage message = client.poll(heartbeat);
+                if (message != null) {
+                    session.getRemote().sendString(client.format(message));
+                } else if (!client.isClosed()) {
+                    session.getRemote().sendPing(PING.duplicate());
+                }
+            }
+            if (client.isClosed() && session.isOpen()) {
+                session.close(StatusCode.POLICY_VIOLATION, "Stream queue full.");
+            }
+        } catch (IOException ex) {
+            logger.log(Level.FINE, "Stream connection closed.", ex);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            streams.unsubscribe(client);
+        }
+    }
+
+    private static String getParameter(Map<String, List<String>> params, String name, String defaultvalue) {
+        List<String> values = params.get(name);
+        return values == null || values.isEmpty() ? defaultvalue : values.get(0);
+    }
+}
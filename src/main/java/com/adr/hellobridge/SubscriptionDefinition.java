@@ -19,6 +19,7 @@
 package com.adr.hellobridge;
 
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.Base64;
 
 /**
@@ -29,17 +30,45 @@ public class SubscriptionDefinition {
     
     public final static int PLAIN = 0;
     public final static int FORMAT_BASE64 = 1;
+    public final static String SHARE_PREFIX = "$share/";
+    
+    private static final int[] BASE64 = new int[128];
+    static {
+        Arrays.fill(BASE64, -1);
+        String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+        for (int i = 0; i < alphabet.length(); i++) {
+            BASE64[alphabet.charAt(i)] = i;
+        }
+    }
     
     private final String name;
     private final String topic;
     private final int format;
     private final int qos;
+    private final String share;
     
     public SubscriptionDefinition(String name, String topic, int format, int qos) {
+        this(name, topic, format, qos, null);
+    }
+    
+    public SubscriptionDefinition(String name, String topic, int format, int qos, String share) {
+        // "$share/<group>/<filter>" is also accepted, messages are routed by the filter
+        if (topic.startsWith(SHARE_PREFIX)) {
+            int slash = topic.indexOf('/', SHARE_PREFIX.length());
+            if (slash < 0) {
+                throw new IllegalArgumentException("Shared subscription without topic filter: " + topic);
+            }
+            share = topic.substring(SHARE_PREFIX.length(), slash);
+            topic = topic.substring(slash + 1);
+        }
+        if (share != null && (share.isEmpty() || share.indexOf('/') >= 0 || share.indexOf('+') >= 0 || share.indexOf('#') >= 0)) {
+            throw new IllegalArgumentException("Invalid shared subscription group: " + share);
+        }
         this.name = name;
         this.topic = topic;
         this.format = format;
         this.qos = qos;
+        this.share = share;
     }
     
     public String getName() {
@@ -49,6 +78,15 @@ public class SubscriptionDefinition {
     public String getTopic() {
         return topic;
     }
+    
+    public String getShare() {
+        return share;
+    }
+    
+    public String getSubscribeTopic() {
+        // The topic filter of the broker subscription
+        return share == null ? topic : SHARE_PREFIX + share + "/" + topic;
+    }
 
     public int getFormat() {
         return format;
@@ -60,14 +98,61 @@ public class SubscriptionDefinition {
     
     public static byte[] parseMessage(String message) {
         if (message.startsWith("plain:")) {
+            // The JDK encoder is faster than any copy saved by encoding in place
             return message.substring(6).getBytes(StandardCharsets.UTF_8);
         } else if (message.startsWith("base64:")) {
-            return Base64.getDecoder().decode(message.substring(7));
+            // Decodes straight from the string into the result, without substrings
+            return decodeBase64(message, 7);
         } else {
             return message.getBytes(StandardCharsets.UTF_8);
         }
     }    
     
+    private static byte[] decodeBase64(String s, int start) {
+        // Same rules as Base64.getDecoder()
+        int end = s.length();
+        int padding = 0;
+        if (end > start && s.charAt(end - 1) == '=') {
+            padding++;
+            end--;
+            if (end > start && s.charAt(end - 1) == '=') {
+                padding++;
+                end--;
+            }
+        }
+        int chars = end - start;
+        if (chars % 4 == 1 || (padding > 0 && (chars + padding) % 4 != 0)) {
+            throw new IllegalArgumentException("Invalid base64 length: " + (s.length() - start));
+        }
+        
+        byte[] result = new byte[chars / 4 * 3 + Math.max(0, chars % 4 - 1)];
+        int p = 0;
+        int bits = 0;
+        int count = 0;
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            int v = c < 128 ? BASE64[c] : -1;
+            if (v < 0) {
+                throw new IllegalArgumentException("Illegal base64 character: " + c);
+            }
+            bits = (bits << 6) | v;
+            if (++count == 4) {
+                result[p++] = (byte) (bits >> 16);
+                result[p++] = (byte) (bits >> 8);
+                result[p++] = (byte) bits;
+                bits = 0;
+                count = 0;
+            }
+        }
+        if (count == 3) {
+            result[p++] = (byte) (bits >> 10);
+            result[p++] = (byte) (bits >> 2);
+        } else if (count == 2) {
+            result[p++] = (byte) (bits >> 4);
+        }
+        return result;
+    }
+    
     public static String formatMessage(byte[] message, int format) {
         if (FORMAT_BASE64 == format) {
             return "base64:" + Base64.getEncoder().encodeToString(message);
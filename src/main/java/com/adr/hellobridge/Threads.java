@@ -0,0 +1,93 @@
+//    HelloBridge is a bridge from HTTP to MQTT
+//    Copyright (C) 2019 Adrián Romero Corchado.
+//
+//    This file is part of HelloBridge.
+//
+//    HelloIot is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    HelloIot is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with HelloIot.  If not, see <http://www.gnu.org/licenses/>.
+//
+package com.adr.hellobridge;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Creates the threads that block on network calls: HTTP request handlers,
+ * webhook dispatch lanes and stream senders. They are daemon platform threads,
+ * or virtual threads when enabled and the JDK supports them, so thousands of
+ * slow calls do not need thousands of platform threads. Virtual threads are
+ * created by reflection, the build targets Java 8. Periodic tasks run on
+ * daemon platform threads.
+ *
+ * @author adrian
+ */
+public class Threads {
+
+    private final static Logger logger = Logger.getLogger(Threads.class.getName());
+
+    private final ThreadFactory virtual;
+
+    public Threads(boolean virtual) {
+        this.virtual = virtual ? createVirtualFactory() : null;
+    }
+
+    public static Threads create(Properties config) {
+        return new Threads(Boolean.parseBoolean(config.getProperty("threads.virtual", "false")));
+    }
+
+    public boolean isVirtual() {
+        return virtual != null;
+    }
+
+    // Not started, platform threads are daemon so they do not keep the JVM running
+    public Thread newThread(String name, Runnable task) {
+        Thread t;
+        if (virtual == null) {
+            t = new Thread(task, name);
+            t.setDaemon(true);
+        } else {
+            t = virtual.newThread(task);
+            t.setName(name);
+        }
+        return t;
+    }
+
+    // Single daemon platform thread, for short periodic tasks
+    public static ScheduledExecutorService newScheduler(String name) {
+        return Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, name);
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    private static ThreadFactory createVirtualFactory() {
+        try {
+            // Thread.ofVirtual().factory(), Java 21
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            return (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+        } catch (NoSuchMethodException | ClassNotFoundException | IllegalAccessException ex) {
+            logger.log(Level.WARNING, "Virtual threads require Java 21, using platform threads. Java version: {0}", System.getProperty("java.version"));
+            return null;
+        } catch (InvocationTargetException ex) {
+            // Preview feature not enabled
+            logger.log(Level.WARNING, "Virtual threads not available, using platform threads.", ex.getCause());
+            return null;
+        }
+    }
+}
@@ -0,0 +1,233 @@
+//    HelloBridge is a bridge from HTTP to MQTT
+//    Copyright (C) 2019 Adrián Romero Corchado.
+//
+//    This file is part of HelloBridge.
+//
+//    HelloIot is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    HelloIot is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with HelloIot.  If not, see <http://www.gnu.org/licenses/>.
+//
+package com.adr.hellobridge;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BiConsumer;
+
+/**
+ * Trie of MQTT topic filters. Filters are added once and then topics are
+ * matched against all of them with the MQTT wildcard semantics of
+ * <code>+</code> and <code>#</code>. Matching walks the topic levels in place,
+ * without creating substrings.
+ *
+ * @author adrian
+ * @param <V> the type of the values associated to the filters
+ */
+public class TopicTrie<V> {
+
+    private final Node<V> root = new Node<>();
+
+    public void add(String filter, V value) {
+        Node<V> node = root;
+        int start = 0;
+        for (;;) {
+            int end = filter.indexOf('/', start);
+            String level = end < 0 ? filter.substring(start) : filter.substring(start, end);
+            if ("#".equals(level)) {
+                if (end >= 0) {
+                    throw new IllegalArgumentException("Multi-level wildcard must be the last level: " + filter);
+                }
+                if (node.multi == null) {
+                    node.multi = new ArrayList<>();
+                }
+                node.multi.add(value);
+                return;
+            } else if ("+".equals(level)) {
+                if (node.single == null) {
+                    node.single = new Node<>();
+                }
+                node = node.single;
+            } else {
+                if (level.indexOf('#') >= 0 || level.indexOf('+') >= 0) {
+                    throw new IllegalArgumentException("Wildcards must occupy an entire level: " + filter);
+                }
+                node = node.child(level);
+            }
+            if (end < 0) {
+                if (node.values == null) {
+                    node.values = new ArrayList<>();
+                }
+                node.values.add(value);
+                return;
+            }
+            start = end + 1;
+        }
+    }
+
+    public <A> void match(String topic, BiConsumer<V, A> visitor, A arg) {
+        // Topics starting with '$' are not matched by wildcards in the first level
+        boolean wildcards = topic.isEmpty() || topic.charAt(0) != '$';
+        match(root, topic, 0, wildcards, visitor, arg);
+    }
+
+    private static <V, A> void match(Node<V> node, String topic, int start, boolean wildcards, BiConsumer<V, A> visitor, A arg) {
+
+        if (wildcards) {
+            visit(node.multi, visitor, arg);
+        }
+
+        int end = topic.indexOf('/', start);
+        int levelend = end < 0 ? topic.length() : end;
+
+        Node<V> next = node.find(topic, start, levelend);
+        if (next != null) {
+            if (end < 0) {
+                visit(next.values, visitor, arg);
+                // "a/#" also matches "a"
+                visit(next.multi, visitor, arg);
+            } else {
+                match(next, topic, end + 1, true, visitor, arg);
+            }
+        }
+
+        if (wildcards && node.single != null) {
+            if (end < 0) {
+                visit(node.single.values, visitor, arg);
+                visit(node.single.multi, visitor, arg);
+            } else {
+                match(node.single, topic, end + 1, true, visitor, arg);
+            }
+        }
+    }
+
+    /**
+     * Tests whether a topic exists that matches both filters.
+     */
+    public static boolean overlaps(String filter1, String filter2) {
+        String[] levels1 = filter1.split("/", -1);
+        String[] levels2 = filter2.split("/", -1);
+        // Wildcards in the first level do not match topics starting with '$'
+        if ((isWildcard(levels1[0]) && levels2[0].startsWith("$"))
+                || (isWildcard(levels2[0]) && levels1[0].startsWith("$"))) {
+            return false;
+        }
+        int i = 0;
+        for (; i < levels1.length && i < levels2.length; i++) {
+            if ("#".equals(levels1[i]) || "#".equals(levels2[i])) {
+                return true;
+            }
+            if (!"+".equals(levels1[i]) && !"+".equals(levels2[i]) && !levels1[i].equals(levels2[i])) {
+                return false;
+            }
+        }
+        if (levels1.length == levels2.length) {
+            return true;
+        }
+        // "a/#" also matches "a"
+        String[] longer = levels1.length > levels2.length ? levels1 : levels2;
+        return i == longer.length - 1 && "#".equals(longer[i]);
+    }
+
+    private static boolean isWildcard(String level) {
+        return "#".equals(level) || "+".equals(level);
+    }
+
+    private static <V, A> void visit(List<V> values, BiConsumer<V, A> visitor, A arg) {
+        if (values != null) {
+            for (int i = 0; i < values.size(); i++) {
+                visitor.accept(values.get(i), arg);
+            }
+        }
+    }
+
+    private static int hash(String s, int start, int end) {
+        // Same as String.hashCode() of the substring
+        int h = 0;
+        for (int i = start; i < end; i++) {
+            h = 31 * h + s.charAt(i);
+        }
+        return h;
+    }
+
+    private static int mix(int h) {
+        return h ^ (h >>> 16);
+    }
+
+    private static class Node<V> {
+
+        // Children by level, open addressing table
+        private String[] keys = new String[0];
+        private Node<V>[] children = newArray(0);
+        private int size = 0;
+
+        private Node<V> single;
+        private List<V> multi;
+        private List<V> values;
+
+        Node<V> child(String level) {
+            Node<V> n = find(level, 0, level.length());
+            if (n != null) {
+                return n;
+            }
+            if ((size + 1) * 2 > keys.length) {
+                resize(Math.max(4, keys.length * 2));
+            }
+            n = new Node<>();
+            insert(level, n);
+            size++;
+            return n;
+        }
+
+        Node<V> find(String topic, int start, int end) {
+            if (size == 0) {
+                return null;
+            }
+            int len = end - start;
+            int mask = keys.length - 1;
+            int i = mix(hash(topic, start, end)) & mask;
+            String key;
+            while ((key = keys[i]) != null) {
+                if (key.length() == len && topic.regionMatches(start, key, 0, len)) {
+                    return children[i];
+                }
+                i = (i + 1) & mask;
+            }
+            return null;
+        }
+
+        private void insert(String level, Node<V> n) {
+            int mask = keys.length - 1;
+            int i = mix(level.hashCode()) & mask;
+            while (keys[i] != null) {
+                i = (i + 1) & mask;
+            }
+            keys[i] = level;
+            children[i] = n;
+        }
+
+        private void resize(int capacity) {
+            String[] oldkeys = keys;
+            Node<V>[] oldchildren = children;
+            keys = new String[capacity];
+            children = newArray(capacity);
+            for (int i = 0; i < oldkeys.length; i++) {
+                if (oldkeys[i] != null) {
+                    insert(oldkeys[i], oldchildren[i]);
+                }
+            }
+        }
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        private static <V> Node<V>[] newArray(int size) {
+            return (Node<V>[]) new Node[size];
+        }
+    }
+}
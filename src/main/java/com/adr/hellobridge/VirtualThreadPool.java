@@ -0,0 +1,145 @@
+//    HelloBridge is a bridge from HTTP to MQTT
+//    Copyright (C) 2019 Adrián Romero Corchado.
+//
+//    This file is part of HelloBridge.
+//
+//    HelloIot is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    HelloIot is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with HelloIot.  If not, see <http://www.gnu.org/licenses/>.
+//
+package com.adr.hellobridge;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.util.component.AbstractLifeCycle;
+import org.eclipse.jetty.util.thread.ThreadPool;
+import spark.embeddedserver.jetty.JettyServerFactory;
+
+/**
+ * Jetty thread pool that runs each task on a new virtual thread, with a
+ * maximum number of tasks running at the same time. Tasks over the maximum
+ * wait in a queue, and a thread that finishes a task takes the next one
+ * from the queue. Like the threads of the default pool, the maximum also
+ * counts the acceptor and selector tasks, that run while the server runs.
+ *
+ * @author adrian
+ */
+public class VirtualThreadPool extends AbstractLifeCycle implements ThreadPool {
+
+    private final Threads threads;
+    private final int maxthreads;
+    private final Queue<Runnable> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger running = new AtomicInteger();
+    private final AtomicInteger counter = new AtomicInteger();
+    private final CountDownLatch stopped = new CountDownLatch(1);
+
+    public VirtualThreadPool(Threads threads, int maxthreads) {
+        this.threads = threads;
+        this.maxthreads = maxthreads;
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        if (!isRunning() && !isStarting()) {
+            throw new RejectedExecutionException("Thread pool not running.");
+        }
+        queue.offer(task);
+        startThreads();
+    }
+
+    private void startThreads() {
+        for (;;) {
+            int r = running.get();
+            if (r >= maxthreads || queue.isEmpty()) {
+                return;
+            }
+            if (running.compareAndSet(r, r + 1)) {
+                Runnable task = queue.poll();
+                if (task == null) {
+                    // Taken by another thread, check again
+                    running.decrementAndGet();
+                } else {
+                    threads.newThread("hellobridge-web-" + counter.incrementAndGet(), () -> run(task)).start();
+                }
+            }
+        }
+    }
+
+    private void run(Runnable task) {
+        try {
+            while (task != null) {
+                task.run();
+                task = queue.poll();
+            }
+        } finally {
+            running.decrementAndGet();
+            // Tasks queued after the last poll and before the decrement
+            startThreads();
+        }
+    }
+
+    @Override
+    protected void doStop() throws Exception {
+        queue.clear();
+        stopped.countDown();
+    }
+
+    @Override
+    public void join() throws InterruptedException {
+        stopped.await();
+    }
+
+    @Override
+    public int getThreads() {
+        return running.get();
+    }
+
+    @Override
+    public int getIdleThreads() {
+        // Threads are not kept idle
+        return 0;
+    }
+
+    @Override
+    public boolean isLowOnThreads() {
+        return !queue.isEmpty();
+    }
+
+    /**
+     * Creates the Jetty servers of Spark with a virtual thread pool, with the
+     * maximum threads of the Spark service.
+     */
+    public static class ServerFactory implements JettyServerFactory {
+
+        private final Threads threads;
+        private final int defaultmaxthreads;
+
+        public ServerFactory(Threads threads, int defaultmaxthreads) {
+            this.threads = threads;
+            this.defaultmaxthreads = defaultmaxthreads;
+        }
+
+        @Override
+        public Server create(int maxthreads, int minthreads, int idletimeout) {
+            return create(new VirtualThreadPool(threads, maxthreads > 0 ? maxthreads : defaultmaxthreads));
+        }
+
+        @Override
+        public Server create(ThreadPool pool) {
+            return new Server(pool);
+        }
+    }
+}
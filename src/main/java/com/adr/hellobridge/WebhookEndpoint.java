@@ -0,0 +1,207 @@
+//    HelloBridge is a bridge from HTTP to MQTT
+//    Copyright (C) 2019 Adrián Romero Corchado.
+//
+//    This file is part of HelloBridge.
+//
+//    HelloIot is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    HelloIot is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with HelloIot.  If not, see <http://www.gnu.org/licenses/>.
+//
+package com.adr.hellobridge;
+
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Health of a webhook host. Combines a circuit breaker, that stops calls to
+ * the host after consecutive failures, with an adaptive limit of concurrent
+ * calls, that grows while calls at the limit succeed and halves when they
+ * fail. Only failures reduce the limit, a host that is slow but healthy keeps
+ * its concurrency. Callers over the limit wait for a free slot, up to a
+ * maximum time, so a saturated host does not hold the workers forever.
+ *
+ * @author adrian
+ */
+public class WebhookEndpoint {
+
+    private final static Logger logger = Logger.getLogger(WebhookEndpoint.class.getName());
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final String host;
+    // Lock and condition instead of monitors, waiting virtual threads do not pin their carrier
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition released = lock.newCondition();
+    private int failurethreshold;
+    private long opentime;
+    private double minlimit;
+    private double maxlimit;
+    private long maxwait;
+
+    private State state = State.CLOSED;
+    private int failures = 0;
+    private long openedat = 0L;
+    private double limit;
+    private int inflight = 0;
+
+    public WebhookEndpoint(String host, int failurethreshold, long opentime, int initiallimit, int minlimit, int maxlimit, long maxwait) {
+        this.host = host;
+        this.limit = initiallimit;
+        configure(failurethreshold, opentime, minlimit, maxlimit, maxwait);
+    }
+
+    public static WebhookEndpoint create(String host, Properties config) {
+        return new WebhookEndpoint(
+                host,
+                Integer.parseInt(config.getProperty("webhook.breaker.failures", "5")),
+                Long.parseLong(config.getProperty("webhook.breaker.open.ms", "30000")),
+                Integer.parseInt(config.getProperty("webhook.concurrency.initial", "10")),
+                Integer.parseInt(config.getProperty("webhook.concurrency.min", "1")),
+                Integer.parseInt(config.getProperty("webhook.concurrency.max", "100")),
+                Long.parseLong(config.getProperty("webhook.concurrency.wait.ms", "30000")));
+    }
+
+    /**
+     * Applies a new configuration keeping the state of the breaker and the
+     * current limit, adjusted to the new bounds.
+     */
+    public void configure(Properties config) {
+        configure(
+                Integer.parseInt(config.getProperty("webhook.breaker.failures", "5")),
+                Long.parseLong(config.getProperty("webhook.breaker.open.ms", "30000")),
+                Integer.parseInt(config.getProperty("webhook.concurrency.min", "1")),
+                Integer.parseInt(config.getProperty("webhook.concurrency.max", "100")),
+                Long.parseLong(config.getProperty("webhook.concurrency.wait.ms", "30000")));
+    }
+
+    private void configure(int failurethreshold, long opentime, int minlimit, int maxlimit, long maxwait) {
+        lock.lock();
+        try {
+            this.failurethreshold = failurethreshold;
+            this.opentime = TimeUnit.MILLISECONDS.toNanos(opentime);
+            this.minlimit = minlimit;
+            this.maxlimit = maxlimit;
+            this.maxwait = TimeUnit.MILLISECONDS.toNanos(maxwait);
+            this.limit = Math.max(this.minlimit, Math.min(this.maxlimit, limit));
+            released.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits until a call to the host is allowed.
+     *
+     * @return false if the circuit is open or no call was allowed in time
+     */
+    public boolean acquire() throws InterruptedException {
+        lock.lock();
+        try {
+            long remaining = maxwait;
+            for (;;) {
+                if (state == State.OPEN) {
+                    if (System.nanoTime() - openedat < opentime) {
+                        return false;
+                    }
+                    // Let one call test the host
+                    state = State.HALF_OPEN;
+                    logger.log(Level.INFO, "Webhook circuit half open for host: {0}", host);
+                }
+                if (state == State.HALF_OPEN ? inflight == 0 : inflight < (int) limit) {
+                    inflight++;
+                    return true;
+                }
+                if (remaining <= 0L) {
+                    return false;
+                }
+                remaining = released.awaitNanos(remaining);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Ends a call to the host.
+     *
+     * @param success false for network errors, timeouts, server errors and
+     * too many requests
+     */
+    public void release(boolean success) {
+        lock.lock();
+        try {
+            inflight--;
+            if (success) {
+                failures = 0;
+                if (state != State.CLOSED) {
+                    state = State.CLOSED;
+                    logger.log(Level.INFO, "Webhook circuit closed for host: {0}", host);
+                }
+                // Grows only when the limit is in use, not while the host is mostly idle
+                if (inflight + 1 >= (int) limit) {
+                    limit = Math.min(maxlimit, limit + 1.0 / limit);
+                }
+            } else {
+                limit = Math.max(minlimit, limit / 2.0);
+                failures++;
+                if (state == State.HALF_OPEN || failures >= failurethreshold) {
+                    if (state != State.OPEN) {
+                        logger.log(Level.WARNING, "Webhook circuit open for host: {0}", host);
+                    }
+                    state = State.OPEN;
+                    openedat = System.nanoTime();
+                }
+            }
+            // Waiting callers fail fast if the circuit opened
+            released.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public State getState() {
+        lock.lock();
+        try {
+            return state;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getLimit() {
+        lock.lock();
+        try {
+            return (int) limit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getInflight() {
+        lock.lock();
+        try {
+            return inflight;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,220 @@
+//    HelloBridge is a bridge from HTTP to MQTT
+//    Copyright (C) 2019 Adrián Romero Corchado.
+//
+//    This file is part of HelloBridge.
+//
+//    HelloIot is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    HelloIot is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with HelloIot.  If not, see <http://www.gnu.org/licenses/>.
+//
+package com.adr.hellobridge;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compiled webhook URL template. The template is parsed once, then bound to a
+ * subscription to render the subscription placeholders, and finally rendered
+ * for each message filling only the topic placeholders.
+ *
+ * Supported placeholders: <code>{{subscription}}</code>,
+ * <code>{{subscriptiontopic}}</code>, <code>{{subscriptiontopicplain}}</code>,
+ * <code>{{topic}}</code> and <code>{{topicplain}}</code>. Unknown
+ * placeholders are kept as they are.
+ *
+ * @author adrian
+ */
+public class WebhookTemplate {
+
+    private static final int LITERAL = 0;
+    private static final int SUBSCRIPTION = 1;
+    private static final int SUBSCRIPTIONTOPIC = 2;
+    private static final int SUBSCRIPTIONTOPICPLAIN = 3;
+    private static final int TOPIC = 4;
+    private static final int TOPICPLAIN = 5;
+
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    private final String template;
+    private final int[] kinds;
+    private final String[] literals;
+
+    public WebhookTemplate(String template) {
+        this.template = template;
+
+        List<Integer> k = new ArrayList<>();
+        List<String> l = new ArrayList<>();
+        int start = 0;
+        int literalstart = 0;
+        for (;;) {
+            int open = template.indexOf("{{", start);
+            int close = open < 0 ? -1 : template.indexOf("}}", open + 2);
+            if (close < 0) {
+                break;
+            }
+            int kind = kind(template.substring(open + 2, close));
+            if (kind != LITERAL) {
+                if (open > literalstart) {
+                    k.add(LITERAL);
+                    l.add(template.substring(literalstart, open));
+                }
+                k.add(kind);
+                l.add(null);
+                literalstart = close + 2;
+            }
+            start = close + 2;
+        }
+        if (literalstart < template.length()) {
+            k.add(LITERAL);
+            l.add(template.substring(literalstart));
+        }
+
+        kinds = new int[k.size()];
+        for (int i = 0; i < kinds.length; i++) {
+            kinds[i] = k.get(i);
+        }
+        literals = l.toArray(new String[l.size()]);
+    }
+
+    public String getTemplate() {
+        return template;
+    }
+
+    public Bound bind(SubscriptionDefinition sub) {
+
+        List<String> parts = new ArrayList<>();
+        List<Boolean> encoded = new ArrayList<>();
+        StringBuilder literal = new StringBuilder();
+        for (int i = 0; i < kinds.length; i++) {
+            switch (kinds[i]) {
+                case SUBSCRIPTION:
+                    literal.append(sub.getName());
+                    break;
+                case SUBSCRIPTIONTOPIC:
+                    encode(literal, sub.getTopic());
+                    break;
+                case SUBSCRIPTIONTOPICPLAIN:
+                    literal.append(sub.getTopic());
+                    break;
+                case TOPIC:
+                case TOPICPLAIN:
+                    parts.add(literal.toString());
+                    encoded.add(kinds[i] == TOPIC);
+                    literal.setLength(0);
+                    break;
+                default: // LITERAL
+                    literal.append(literals[i]);
+            }
+        }
+        parts.add(literal.toString());
+
+        boolean[] e = new boolean[encoded.size()];
+        for (int i = 0; i < e.length; i++) {
+            e[i] = encoded.get(i);
+        }
+        return new Bound(parts.toArray(new String[parts.size()]), e);
+    }
+
+    private static int kind(String name) {
+        switch (name) {
+            case "subscription":
+                return SUBSCRIPTION;
+            case "subscriptiontopic":
+                return SUBSCRIPTIONTOPIC;
+            case "subscriptiontopicplain":
+                return SUBSCRIPTIONTOPICPLAIN;
+            case "topic":
+                return TOPIC;
+            case "topicplain":
+                return TOPICPLAIN;
+            default:
+                return LITERAL;
+        }
+    }
+
+    // Same encoding as URLEncoder.encode(s, "UTF-8") appended to the builder
+    private static void encode(StringBuilder sb, String s) {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+                    || c == '.' || c == '-' || c == '*' || c == '_') {
+                sb.append(c);
+            } else if (c == ' ') {
+                sb.append('+');
+            } else if (c < 0x80) {
+                appendByte(sb, c);
+            } else if (c < 0x800) {
+                appendByte(sb, 0xC0 | (c >> 6));
+                appendByte(sb, 0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                appendByte(sb, 0xF0 | (cp >> 18));
+                appendByte(sb, 0x80 | ((cp >> 12) & 0x3F));
+                appendByte(sb, 0x80 | ((cp >> 6) & 0x3F));
+                appendByte(sb, 0x80 | (cp & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                // Unpaired surrogate, encoded as the replacement character
+                appendByte(sb, '?');
+            } else {
+                appendByte(sb, 0xE0 | (c >> 12));
+                appendByte(sb, 0x80 | ((c >> 6) & 0x3F));
+                appendByte(sb, 0x80 | (c & 0x3F));
+            }
+        }
+    }
+
+    private static void appendByte(StringBuilder sb, int b) {
+        sb.append('%').append(HEX[(b >> 4) & 0xF]).append(HEX[b & 0xF]);
+    }
+
+    /**
+     * Template with the subscription placeholders already rendered.
+     */
+    public static class Bound {
+
+        private final String[] parts;
+        private final boolean[] encoded;
+        private final int length;
+
+        private Bound(String[] parts, boolean[] encoded) {
+            this.parts = parts;
+            this.encoded = encoded;
+            int l = 0;
+            for (String p : parts) {
+                l += p.length();
+            }
+            this.length = l;
+        }
+
+        // Whether the URL depends on the topic of the message
+        public boolean hasTopic() {
+            return encoded.length > 0;
+        }
+
+        public String render(String topic) {
+            if (encoded.length == 0) {
+                return parts[0];
+            }
+            StringBuilder sb = new StringBuilder(length + encoded.length * topic.length() * 3 / 2);
+            sb.append(parts[0]);
+            for (int i = 0; i < encoded.length; i++) {
+                if (encoded[i]) {
+                    encode(sb, topic);
+                } else {
+                    sb.append(topic);
+                }
+                sb.append(parts[i + 1]);
+            }
+            return sb.toString();
+        }
+    }
+}
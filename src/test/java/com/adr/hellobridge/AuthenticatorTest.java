@@ -0,0 +1,141 @@
+//    HelloBridge is a bridge from HTTP to MQTT
+//    Copyright (C) 2019 Adrián Romero Corchado.
+//
+//    This file is part of HelloBridge.
+//
+//    HelloIot is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    HelloIot is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with HelloIot.  If not, see <http://www.gnu.org/licenses/>.
+//
+package com.adr.hellobridge;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ *
+ * @author adrian
+ */
+public class AuthenticatorTest {
+
+    private static final byte[] SECRET = "secret".getBytes(StandardCharsets.UTF_8);
+
+    private static Authenticator create() {
+        return new Authenticator("token", SECRET, 10);
+    }
+
+    private static String encode(String s) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String jwt(String header, String claims, byte[] secret) throws Exception {
+        String content = encode(header) + "." + encode(claims);
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(secret, "HmacSHA256"));
+        byte[] signature = mac.doFinal(content.getBytes(StandardCharsets.US_ASCII));
+        return "Bearer " + content + "." + Base64.getUrlEncoder().withoutPadding().encodeToString(signature);
+    }
+
+    private static String jwt(String claims) throws Exception {
+        return jwt("{\"alg\":\"HS256\",\"typ\":\"JWT\"}", claims, SECRET);
+    }
+
+    private static long now() {
+        return System.currentTimeMillis() / 1000L;
+    }
+
+    @Test
+    public void testBasic() {
+        Authenticator authenticator = create();
+        String credentials = Base64.getEncoder().encodeToString("mqtt:token".getBytes(StandardCharsets.UTF_8));
+        assertSame(Authenticator.ALL, authenticator.authenticate("Basic " + credentials));
+        // Same credentials without padding
+        assertSame(Authenticator.ALL, authenticator.authenticate("Basic " + credentials.replace("=", "")));
+        assertNull(authenticator.authenticate("Basic " + Base64.getEncoder().encodeToString("mqtt:other".getBytes(StandardCharsets.UTF_8))));
+        assertNull(authenticator.authenticate("Basic !!!"));
+        assertNull(authenticator.authenticate(null));
+    }
+
+    @Test
+    public void testBearer() throws Exception {
+        Authenticator.Grant grant = create().authenticate(jwt("{\"sub\":\"sensor1\",\"exp\":" + (now() + 60) + "}"));
+        assertNotNull(grant);
+        assertEquals("sensor1", grant.getSubject());
+        assertFalse(grant.isRestricted());
+        assertTrue(grant.allows("any/topic"));
+    }
+
+    @Test
+    public void testBadSignature() throws Exception {
+        Authenticator authenticator = create();
+        assertNull(authenticator.authenticate(jwt("{\"alg\":\"HS256\"}", "{\"sub\":\"a\"}", "other".getBytes(StandardCharsets.UTF_8))));
+        String token = jwt("{\"sub\":\"a\"}");
+        // Claims changed after signing
+        String[] parts = token.substring(7).split("\\.");
+        assertNull(authenticator.authenticate("Bearer " + parts[0] + "." + encode("{\"sub\":\"b\"}") + "." + parts[2]));
+        assertNull(authenticator.authenticate("Bearer " + parts[0] + "." + parts[1]));
+        assertNull(authenticator.authenticate("Bearer " + parts[0] + "." + parts[1] + "."));
+        assertNull(authenticator.authenticate("Bearer garbage"));
+    }
+
+    @Test
+    public void testAlgorithm() throws Exception {
+        Authenticator authenticator = create();
+        // Unsigned tokens and other algorithms are rejected, even signed with the secret
+        assertNull(authenticator.authenticate("Bearer " + encode("{\"alg\":\"none\"}") + "." + encode("{\"sub\":\"a\"}") + "."));
+        assertNull(authenticator.authenticate(jwt("{\"alg\":\"none\"}", "{\"sub\":\"a\"}", SECRET)));
+        assertNull(authenticator.authenticate(jwt("{\"alg\":\"HS512\"}", "{\"sub\":\"a\"}", SECRET)));
+        assertNull(authenticator.authenticate(jwt("{\"alg\":\"RS256\"}", "{\"sub\":\"a\"}", SECRET)));
+        assertNull(authenticator.authenticate(jwt("{}", "{\"sub\":\"a\"}", SECRET)));
+    }
+
+    @Test
+    public void testExpiration() throws Exception {
+        Authenticator authenticator = create();
+        assertNull(authenticator.authenticate(jwt("{\"sub\":\"a\",\"exp\":" + (now() - 1) + "}")));
+        assertNull(authenticator.authenticate(jwt("{\"sub\":\"a\",\"nbf\":" + (now() + 60) + "}")));
+        assertNotNull(authenticator.authenticate(jwt("{\"sub\":\"a\",\"nbf\":" + (now() - 1) + ",\"exp\":" + (now() + 60) + "}")));
+    }
+
+    @Test
+    public void testTopics() throws Exception {
+        Authenticator.Grant grant = create().authenticate(jwt("{\"sub\":\"a\",\"topics\":[\"sensors/1/#\",\"status/+\"]}"));
+        assertTrue(grant.isRestricted());
+        assertTrue(grant.allows("sensors/1"));
+        assertTrue(grant.allows("sensors/1/temp"));
+        assertTrue(grant.allows("status/a"));
+        assertFalse(grant.allows("sensors/2/temp"));
+        assertFalse(grant.allows("status/a/b"));
+        assertFalse(grant.allows("$SYS/status"));
+    }
+
+    @Test
+    public void testBearerWithoutSecret() throws Exception {
+        assertNull(new Authenticator("token", null, 10).authenticate(jwt("{\"sub\":\"a\"}")));
+    }
+
+    @Test
+    public void testCache() throws Exception {
+        Authenticator authenticator = create();
+        String token = jwt("{\"sub\":\"a\",\"exp\":" + (now() + 60) + "}");
+        assertSame(authenticator.authenticate(token), authenticator.authenticate(token));
+    }
+}
@@ -0,0 +1,162 @@
+//    HelloBridge is a bridge from HTTP to MQTT
+//    Copyright (C) 2019 Adrián Romero Corchado.
+//
+//    This file is part of HelloBridge.
+//
+//    HelloIot is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    HelloIot is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with HelloIot.  If not, see <http://www.gnu.org/licenses/>.
+//
+package com.adr.hellobridge;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ *
+ * @author adrian
+ */
+public class DispatchQueueTest {
+
+    private static final Threads THREADS = new Threads(false);
+
+    @Test
+    public void testOrderByKey() throws Exception {
+        Map<String, List<Integer>> received = new HashMap<>();
+        DispatchQueue<String[]> queue = new DispatchQueue<>("order", 4, 100, DispatchQueue.Backpressure.BLOCK, items -> {
+            synchronized (received) {
+                for (String[] item : items) {
+                    received.computeIfAbsent(item[0], k -> new ArrayList<>()).add(Integer.parseInt(item[1]));
+                }
+            }
+        });
+        queue.start(THREADS);
+        for (int i = 0; i < 1000; i++) {
+            String key = "key" + (i % 10);
+            assertTrue(queue.submit(key, new String[]{key, Integer.toString(i)}));
+        }
+        queue.close(5000L);
+
+        assertEquals(10, received.size());
+        for (List<Integer> values : received.values()) {
+            assertEquals(100, values.size());
+            List<Integer> sorted = new ArrayList<>(values);
+            Collections.sort(sorted);
+            assertEquals(sorted, values);
+        }
+        assertFalse(queue.submit("key0", new String[]{"key0", "1000"}));
+    }
+
+    // A queue with one lane whose handler waits until released, holding the first item
+    private static DispatchQueue<Integer> blocked(DispatchQueue.Backpressure backpressure, List<Integer> received, CountDownLatch started, CountDownLatch release) {
+        DispatchQueue<Integer> queue = new DispatchQueue<>("blocked", 1, 2, backpressure, items -> {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            synchronized (received) {
+                received.addAll(items);
+            }
+        });
+        queue.start(THREADS);
+        return queue;
+    }
+
+    @Test
+    public void testDropNewest() throws Exception {
+        List<Integer> received = new ArrayList<>();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        DispatchQueue<Integer> queue = blocked(DispatchQueue.Backpressure.DROP_NEWEST, received, started, release);
+        queue.submit("k", 0);
+        assertTrue(started.await(5L, TimeUnit.SECONDS));
+        assertTrue(queue.submit("k", 1));
+        assertTrue(queue.submit("k", 2));
+        assertFalse(queue.submit("k", 3));
+        assertEquals(1L, queue.getDropped());
+        release.countDown();
+        queue.close(5000L);
+        assertEquals(Arrays.asList(0, 1, 2), received);
+    }
+
+    @Test
+    public void testDropOldest() throws Exception {
+        List<Integer> received = new ArrayList<>();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        DispatchQueue<Integer> queue = blocked(DispatchQueue.Backpressure.DROP_OLDEST, received, started, release);
+        queue.submit("k", 0);
+        assertTrue(started.await(5L, TimeUnit.SECONDS));
+        for (int i = 1; i <= 4; i++) {
+            assertTrue(queue.submit("k", i));
+        }
+        assertEquals(2L, queue.getDropped());
+        release.countDown();
+        queue.close(5000L);
+        assertEquals(Arrays.asList(0, 3, 4), received);
+    }
+
+    @Test
+    public void testBlock() throws Exception {
+        List<Integer> received = new ArrayList<>();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        DispatchQueue<Integer> queue = blocked(DispatchQueue.Backpressure.BLOCK, received, started, release);
+        queue.submit("k", 0);
+        assertTrue(started.await(5L, TimeUnit.SECONDS));
+        queue.submit("k", 1);
+        queue.submit("k", 2);
+
+        CountDownLatch submitted = new CountDownLatch(1);
+        Thread producer = new Thread(() -> {
+            queue.submit("k", 3);
+            submitted.countDown();
+        });
+        producer.start();
+        // Waits for room while the queue is full
+        assertFalse(submitted.await(200L, TimeUnit.MILLISECONDS));
+        release.countDown();
+        assertTrue(submitted.await(5L, TimeUnit.SECONDS));
+        queue.close(5000L);
+        assertEquals(0L, queue.getDropped());
+        assertEquals(Arrays.asList(0, 1, 2, 3), received);
+    }
+
+    @Test
+    public void testBatch() throws Exception {
+        List<List<Integer>> batches = new ArrayList<>();
+        DispatchQueue<Integer> queue = new DispatchQueue<>("batch", 1, 100, DispatchQueue.Backpressure.BLOCK, 4, 1000L, items -> {
+            synchronized (batches) {
+                batches.add(new ArrayList<>(items));
+            }
+        });
+        for (int i = 0; i < 10; i++) {
+            queue.submit("k", i);
+        }
+        // Queued before the worker starts, so the batches are full except the last one
+        queue.start(THREADS);
+        queue.close(5000L);
+        assertEquals(Arrays.asList(Arrays.asList(0, 1, 2, 3), Arrays.asList(4, 5, 6, 7), Arrays.asList(8, 9)), batches);
+    }
+}
@@ -0,0 +1,105 @@
+//    HelloBridge is a bridge from HTTP to MQTT
+//    Copyright (C) 2019 Adrián Romero Corchado.
+//
+//    This file is part of HelloBridge.
+//
+//    HelloIot is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    HelloIot is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with HelloIot.  If not, see <http://www.gnu.org/licenses/>.
+//
+package com.adr.hellobridge;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicReference;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ *
+ * @author adrian
+ */
+public class LastValueCacheTest {
+
+    private static EventMessage message(String topic, String payload) {
+        return new EventMessage(topic, payload.getBytes(StandardCharsets.UTF_8), 0, true);
+    }
+
+    @Test
+    public void testPutAndRemove() {
+        LastValueCache cache = new LastValueCache(100, 60000L);
+        cache.put(message("a/b", "1"));
+        cache.put(message("a/c", "2"));
+        assertEquals(2L, cache.getVersion());
+        assertEquals(2, cache.match("a/+").size());
+        // An empty retained message clears the topic
+        cache.put(message("a/b", ""));
+        assertNull(cache.get("a/b"));
+        assertEquals(3L, cache.getVersion());
+        assertEquals(1, cache.match("a/#").size());
+    }
+
+    @Test
+    public void testMaxSize() {
+        LastValueCache cache = new LastValueCache(2, 60000L);
+        cache.put(message("a", "1"));
+        cache.put(message("b", "2"));
+        cache.put(message("c", "3"));
+        assertNull(cache.get("a"));
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    public void testVersionAfterEntry() throws Exception {
+        LastValueCache cache = new LastValueCache(100000, 60000L);
+        int count = 100000;
+        AtomicReference<String> error = new AtomicReference<>();
+        Thread reader = new Thread(() -> {
+            long v;
+            while ((v = cache.getVersion()) < count) {
+                // The entry of each version seen is visible
+                if (v > 0L && cache.get("t/" + (v - 1)) == null) {
+                    error.set("Version " + v + " without entry");
+                    return;
+                }
+            }
+        });
+        reader.start();
+        for (int i = 0; i < count; i++) {
+            cache.put(message("t/" + i, "v"));
+        }
+        reader.join();
+        assertNull(error.get());
+    }
+
+    @Test
+    public void testAwait() throws Exception {
+        LastValueCache cache = new LastValueCache(100, 60000L);
+        long since = cache.getVersion();
+        assertFalse(cache.await("a/#", since, 50L));
+        Thread writer = new Thread(() -> {
+            try {
+                Thread.sleep(50L);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            cache.put(message("b", "1"));
+            cache.put(message("a/b", "1"));
+        });
+        writer.start();
+        assertTrue(cache.await("a/#", since, 5000L));
+        writer.join();
+        assertEquals(2L, cache.getVersion());
+    }
+}
@@ -0,0 +1,259 @@
+//    HelloBridge is a bridge from HTTP to MQTT
+//    Copyright (C) 2019 Adrián Romero Corchado.
+//
+//    This file is part of HelloBridge.
+//
+//    HelloIot is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    HelloIot is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with HelloIot.  If not, see <http://www.gnu.org/licenses/>.
+//
+package com.adr.hellobridge;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.eclipse.paho.client.mqttv3.MqttPersistable;
+import org.eclipse.paho.client.mqttv3.MqttPersistenceException;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ *
+ * @author adrian
+ */
+public class MappedPersistenceTest {
+
+    private static final String CLIENT = "client";
+    private static final String SERVER = "tcp://localhost:1883";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static MappedPersistence open(File dir, int segmentsize) throws MqttPersistenceException {
+        MappedPersistence persistence = new MappedPersistence(dir, segmentsize, 0L);
+        persistence.open(CLIENT, SERVER);
+        return persistence;
+    }
+
+    private static MqttPersistable data(String header, String payload) {
+        byte[] h = header.getBytes(StandardCharsets.UTF_8);
+        byte[] p = payload.getBytes(StandardCharsets.UTF_8);
+        return new MappedPersistence.Data(h, p);
+    }
+
+    private static void assertData(MqttPersistable expected, MqttPersistable actual) throws MqttPersistenceException {
+        assertArrayEquals(Arrays.copyOfRange(expected.getHeaderBytes(), expected.getHeaderOffset(), expected.getHeaderOffset() + expected.getHeaderLength()),
+                Arrays.copyOfRange(actual.getHeaderBytes(), actual.getHeaderOffset(), actual.getHeaderOffset() + actual.getHeaderLength()));
+        assertArrayEquals(Arrays.copyOfRange(expected.getPayloadBytes(), expected.getPayloadOffset(), expected.getPayloadOffset() + expected.getPayloadLength()),
+                Arrays.copyOfRange(actual.getPayloadBytes(), actual.getPayloadOffset(), actual.getPayloadOffset() + actual.getPayloadLength()));
+    }
+
+    private static List<String> keys(MappedPersistence persistence) throws MqttPersistenceException {
+        List<String> result = Collections.list(persistence.keys());
+        Collections.sort(result);
+        return result;
+    }
+
+    private static File[] segments(File dir) {
+        File[] clients = dir.listFiles(File::isDirectory);
+        return clients[0].listFiles((d, name) -> name.endsWith(".seg"));
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        File dir = folder.newFolder();
+        MappedPersistence persistence = open(dir, 4096);
+        MqttPersistable a = data("header1", "payload1");
+        MqttPersistable b = data("header2", "");
+        persistence.put("s-1", a);
+        persistence.put("s-2", b);
+        assertData(a, persistence.get("s-1"));
+        assertData(b, persistence.get("s-2"));
+        assertEquals(Arrays.asList("s-1", "s-2"), keys(persistence));
+
+        MqttPersistable replaced = data("header3", "payload3");
+        persistence.put("s-1", replaced);
+        assertData(replaced, persistence.get("s-1"));
+
+        persistence.remove("s-2");
+        assertFalse(persistence.containsKey("s-2"));
+        assertNull(persistence.get("s-2"));
+        assertEquals(Arrays.asList("s-1"), keys(persistence));
+
+        persistence.close();
+        persistence = open(dir, 4096);
+        assertData(replaced, persistence.get("s-1"));
+        assertEquals(Arrays.asList("s-1"), keys(persistence));
+
+        persistence.clear();
+        assertEquals(Collections.emptyList(), keys(persistence));
+        persistence.close();
+    }
+
+    @Test
+    public void testReopenAfterCrash() throws Exception {
+        File dir = folder.newFolder();
+        // Writes and halts without closing
+        Process process = new ProcessBuilder(
+                new File(new File(System.getProperty("java.home"), "bin"), "java").getPath(),
+                "-cp", System.getProperty("java.class.path"),
+                Crash.class.getName(), dir.getPath())
+                .inheritIO()
+                .start();
+        assertEquals(Crash.EXIT, process.waitFor());
+
+        // A record partially written when the process stopped
+        File[] files = segments(dir);
+        assertEquals(1, files.length);
+        try (RandomAccessFile f = new RandomAccessFile(files[0], "rw")) {
+            int position = 0;
+            int length;
+            while ((length = readInt(f, position)) > 0) {
+                position += 8 + length;
+            }
+            f.seek(position);
+            f.writeInt(20);
+            f.writeInt(12345);
+            f.write(new byte[]{1, 0, 3, 's', '-', '9'});
+        }
+
+        MappedPersistence persistence = open(dir, 4096);
+        assertEquals(Arrays.asList("s-1", "s-3"), keys(persistence));
+        assertData(data("h1", "p1"), persistence.get("s-1"));
+        assertData(data("h3", "p3"), persistence.get("s-3"));
+
+        // New records after the recovered ones
+        persistence.put("s-4", data("h4", "p4"));
+        persistence.close();
+        persistence = open(dir, 4096);
+        assertEquals(Arrays.asList("s-1", "s-3", "s-4"), keys(persistence));
+        persistence.close();
+    }
+
+    private static int readInt(RandomAccessFile f, int position) throws Exception {
+        f.seek(position);
+        return f.readInt();
+    }
+
+    @Test
+    public void testCompaction() throws Exception {
+        File dir = folder.newFolder();
+        MappedPersistence persistence = open(dir, 512);
+        // A message never acknowledged, in the first segment
+        MqttPersistable kept = data("kept", "kept");
+        persistence.put("s-0", kept);
+        for (int i = 1; i <= 1000; i++) {
+            String key = "s-" + i;
+            persistence.put(key, data("header", "payload of message " + i));
+            persistence.remove(key);
+        }
+        assertTrue("Segments: " + segments(dir).length, segments(dir).length <= 3);
+        assertData(kept, persistence.get("s-0"));
+
+        persistence.close();
+        persistence = open(dir, 512);
+        assertEquals(Arrays.asList("s-0"), keys(persistence));
+        assertData(kept, persistence.get("s-0"));
+        persistence.close();
+    }
+
+    @Test(expected = MqttPersistenceException.class)
+    public void testInUse() throws Exception {
+        File dir = folder.newFolder();
+        MappedPersistence persistence = open(dir, 4096);
+        try {
+            open(dir, 4096);
+        } finally {
+            persistence.close();
+        }
+    }
+
+    @Test
+    public void testOpenAgain() throws Exception {
+        File dir = folder.newFolder();
+        MappedPersistence persistence = open(dir, 4096);
+        persistence.put("s-1", data("h1", "p1"));
+        // Reconnect with the disconnected buffer enabled
+        persistence.open(CLIENT, SERVER);
+        assertEquals(Arrays.asList("s-1"), keys(persistence));
+        persistence.put("s-2", data("h2", "p2"));
+        assertData(data("h1", "p1"), persistence.get("s-1"));
+        persistence.close();
+
+        persistence = open(dir, 4096);
+        assertEquals(Arrays.asList("s-1", "s-2"), keys(persistence));
+        persistence.close();
+    }
+
+    @Test
+    public void testOpenAfterClose() throws Exception {
+        File dir = folder.newFolder();
+        MappedPersistence persistence = open(dir, 4096);
+        persistence.put("s-1", data("h1", "p1"));
+        persistence.close();
+        persistence.open(CLIENT, SERVER);
+        assertEquals(Arrays.asList("s-1"), keys(persistence));
+        assertData(data("h1", "p1"), persistence.get("s-1"));
+        persistence.close();
+    }
+
+    @Test
+    public void testOpenInUseKeepsLock() throws Exception {
+        File dir = folder.newFolder();
+        MappedPersistence first = open(dir, 4096);
+        MappedPersistence second = new MappedPersistence(dir, 4096, 0L);
+        try {
+            second.open(CLIENT, SERVER);
+            fail("Opened twice");
+        } catch (MqttPersistenceException ex) {
+            assertEquals(MqttPersistenceException.REASON_CODE_PERSISTENCE_IN_USE, ex.getReasonCode());
+        }
+        // Still locked by the first instance
+        first.put("s-1", data("h1", "p1"));
+        try {
+            open(dir, 4096);
+            fail("Opened while locked");
+        } catch (MqttPersistenceException ex) {
+            assertEquals(MqttPersistenceException.REASON_CODE_PERSISTENCE_IN_USE, ex.getReasonCode());
+        }
+        first.close();
+
+        // The failed instance can be opened once released
+        second.open(CLIENT, SERVER);
+        assertEquals(Arrays.asList("s-1"), keys(second));
+        second.close();
+    }
+
+    public static class Crash {
+
+        static final int EXIT = 3;
+
+        public static void main(String[] args) throws Exception {
+            MappedPersistence persistence = open(new File(args[0]), 4096);
+            persistence.put("s-1", data("h1", "p1"));
+            persistence.put("s-2", data("h2", "p2"));
+            persistence.put("s-3", data("h3", "p3"));
+            persistence.remove("s-2");
+            Runtime.getRuntime().halt(EXIT);
+        }
+    }
+}
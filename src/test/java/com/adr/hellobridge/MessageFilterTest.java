@@ -0,0 +1,73 @@
+//    HelloBridge is a bridge from HTTP to MQTT
+//    Copyright (C) 2019 Adrián Romero Corchado.
+//
+//    This file is part of HelloBridge.
+//
+//    HelloIot is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    HelloIot is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with HelloIot.  If not, see <http://www.gnu.org/licenses/>.
+//
+package com.adr.hellobridge;
+
+import java.nio.charset.StandardCharsets;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ *
+ * @author adrian
+ */
+public class MessageFilterTest {
+
+    private static EventMessage message(String payload) {
+        return new EventMessage("a/b", payload.getBytes(StandardCharsets.UTF_8), 0, false);
+    }
+
+    private static boolean passes(String expression, String payload) {
+        return new MessageFilter(expression, null, false, "$", 0.0, 100).apply(message(payload)) != null;
+    }
+
+    @Test
+    public void testJsonFields() {
+        assertTrue(passes("a.b > 1 && c == \"on\"", "{\"a\":{\"b\":2},\"c\":\"on\"}"));
+        assertFalse(passes("a.b > 1", "{\"a\":{\"b\":1}}"));
+        assertFalse(passes("a.b > 1", "{\"a\":{\"b\":2}} trailing"));
+        assertTrue(passes("$ == 42", "42"));
+        assertTrue(passes("$ == \"on\"", "\"on\""));
+    }
+
+    @Test
+    public void testPlainText() {
+        assertTrue(passes("$ == \"hello world\"", "hello world"));
+        assertTrue(passes("$ == \"on\"", "on"));
+        assertFalse(passes("$ == \"on\"", "on; garbage"));
+        assertFalse(passes("a == \"on\"", "on"));
+    }
+
+    @Test
+    public void testProjection() {
+        MessageFilter filter = new MessageFilter(null, "a.b", false, "$", 0.0, 100);
+        EventMessage result = filter.apply(message("{\"a\":{\"b\":2,\"c\":3},\"d\":4}"));
+        assertEquals("{\"a\":{\"b\":2}}", new String(result.getMessage(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testDeadband() {
+        MessageFilter filter = new MessageFilter(null, null, false, "v", 1.0, 100);
+        EventMessage first = filter.apply(message("{\"v\":10}"));
+        filter.queued(first);
+        assertEquals(null, filter.apply(message("{\"v\":10.5}")));
+        assertTrue(filter.apply(message("{\"v\":11}")) != null);
+    }
+}
@@ -0,0 +1,126 @@
+//    HelloBridge is a bridge from HTTP to MQTT
+//    Copyright (C) 2019 Adrián Romero Corchado.
+//
+//    This file is part of HelloBridge.
+//
+//    HelloIot is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    HelloIot is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with HelloIot.  If not, see <http://www.gnu.org/licenses/>.
+//
+package com.adr.hellobridge;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+/**
+ *
+ * @author adrian
+ */
+public class PublishReaderTest {
+
+    private static JsonReader reader(String body) {
+        return PublishReader.createBulkReader(input(body));
+    }
+
+    private static ByteArrayInputStream input(String body) {
+        return new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void assertInvalid(JsonReader reader, String topic) throws IOException {
+        try {
+            PublishReader.readMessage(reader, topic);
+            fail("Invalid message accepted");
+        } catch (IllegalArgumentException ex) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testMessage() throws IOException {
+        EventMessage message = PublishReader.readMessage(reader("{\"topic\":\"a/b\",\"message\":\"hello\",\"qos\":1,\"retained\":true,\"other\":[1,{}]}"), null);
+        assertEquals("a/b", message.getTopic());
+        assertEquals("hello", new String(message.getMessage(), StandardCharsets.UTF_8));
+        assertEquals(1, message.getQoS());
+        assertTrue(message.isRetained());
+    }
+
+    @Test
+    public void testTopicOfRequest() throws IOException {
+        EventMessage message = PublishReader.readMessage(reader("{\"topic\":\"ignored\",\"message\":\"x\"}"), "a/b");
+        assertEquals("a/b", message.getTopic());
+        assertEquals(0, message.getQoS());
+        assertFalse(message.isRetained());
+    }
+
+    @Test
+    public void testInvalidQoS() throws IOException {
+        assertInvalid(reader("{\"topic\":\"a\",\"message\":\"x\",\"qos\":3}"), null);
+        assertInvalid(reader("{\"topic\":\"a\",\"message\":\"x\",\"qos\":-1}"), null);
+        assertInvalid(reader("{\"topic\":\"a\",\"message\":\"x\",\"qos\":\"high\"}"), null);
+    }
+
+    @Test
+    public void testInvalidTopic() throws IOException {
+        assertInvalid(reader("{\"topic\":\"a/#\",\"message\":\"x\"}"), null);
+        assertInvalid(reader("{\"topic\":\"a/+/b\",\"message\":\"x\"}"), null);
+        assertInvalid(reader("{\"topic\":\"\",\"message\":\"x\"}"), null);
+        assertInvalid(reader("{\"message\":\"x\"}"), null);
+        assertInvalid(reader("{\"message\":\"x\"}"), "a/+");
+    }
+
+    @Test
+    public void testInvalidItemsConsumed() throws IOException {
+        // Each item is read whole, so the next one can be read after an invalid one
+        JsonReader reader = reader("{\"topic\":\"a/#\",\"message\":\"x\",\"extra\":{\"b\":[1]}}\n[1,2]\n{\"topic\":\"b\",\"message\":\"y\"}\n");
+        assertInvalid(reader, null);
+        assertInvalid(reader, null);
+        assertEquals("b", PublishReader.readMessage(reader, null).getTopic());
+        assertEquals(JsonToken.END_DOCUMENT, reader.peek());
+    }
+
+    @Test
+    public void testSingleMessage() throws IOException {
+        EventMessage message = PublishReader.readJsonMessage(input(" {\"message\":\"plain:h\u00e9llo \ud83d\ude00\"}\n"), "a/b");
+        assertEquals("a/b", message.getTopic());
+        assertEquals("h\u00e9llo \ud83d\ude00", new String(message.getMessage(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testSingleMessageTrailingData() throws IOException {
+        try {
+            PublishReader.readJsonMessage(input("{\"message\":\"x\"}{\"message\":\"y\"}"), "a/b");
+            fail("Trailing data accepted");
+        } catch (IllegalArgumentException | IOException ex) {
+            // Expected
+        }
+        try {
+            PublishReader.readJsonMessage(input("{\"message\":\"x\"} garbage"), "a/b");
+            fail("Trailing data accepted");
+        } catch (IllegalArgumentException | IOException ex) {
+            // Expected
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testSingleMessageStrict() throws IOException {
+        // Unquoted strings are only accepted by lenient readers
+        PublishReader.readJsonMessage(input("{message:x}"), "a/b");
+    }
+}
@@ -0,0 +1,187 @@
+//    HelloBridge is a bridge from HTTP to MQTT
+//    Copyright (C) 2019 Adrián Romero Corchado.
+//
+//    This file is part of HelloBridge.
+//
+//    HelloIot is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    HelloIot is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with HelloIot.  If not, see <http://www.gnu.org/licenses/>.
+//
+package com.adr.hellobridge;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ *
+ * @author adrian
+ */
+public class RetryLogTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static RetryLog open(File dir, int segmentsize, int maxsegments, Predicate<RetryLog.Entry> deliverer) throws Exception {
+        RetryLog log = new RetryLog(dir, segmentsize, maxsegments, 1000L, 20L, 100L, 0, 0L, 1000, deliverer);
+        log.open();
+        return log;
+    }
+
+    private static byte[] body(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String text(RetryLog.Entry entry) {
+        return new String(entry.getBody(), StandardCharsets.UTF_8);
+    }
+
+    private static List<String> take(BlockingQueue<String> queue, int count) throws InterruptedException {
+        List<String> result = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            String s = queue.poll(5L, TimeUnit.SECONDS);
+            if (s == null) {
+                break;
+            }
+            result.add(s);
+        }
+        return result;
+    }
+
+    private static int segments(File dir) {
+        return dir.listFiles((d, name) -> name.endsWith(".seg")).length;
+    }
+
+    private static void waitPending(RetryLog log, long pending) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5L);
+        while (log.getPending() != pending && System.nanoTime() < deadline) {
+            Thread.sleep(10L);
+        }
+        assertEquals(pending, log.getPending());
+    }
+
+    @Test
+    public void testSegmentRollOver() throws Exception {
+        File dir = folder.newFolder();
+        BlockingQueue<String> delivered = new LinkedBlockingQueue<>();
+        List<String> expected = new ArrayList<>();
+        RetryLog log = open(dir, 256, 64, e -> delivered.add(text(e)));
+        for (int i = 0; i < 50; i++) {
+            String text = "delivery number " + i;
+            assertTrue(log.append("sub", "http://localhost/sub", body(text)));
+            expected.add(text);
+        }
+        assertEquals(expected, take(delivered, 50));
+        waitPending(log, 0L);
+        // Delivered segments are deleted
+        assertEquals(1, segments(dir));
+        log.close();
+    }
+
+    @Test
+    public void testFull() throws Exception {
+        File dir = folder.newFolder();
+        RetryLog log = open(dir, 128, 2, e -> false);
+        int appended = 0;
+        while (appended < 100 && log.append("sub", "http://localhost/sub", body("delivery"))) {
+            appended++;
+        }
+        assertTrue(appended > 0 && appended < 100);
+        assertEquals(appended, log.getPending());
+        assertEquals(2, segments(dir));
+        // Too large for a segment
+        assertFalse(log.append("sub", "http://localhost/sub", new byte[200]));
+        log.close();
+    }
+
+    @Test
+    public void testReplayAfterRestart() throws Exception {
+        File dir = folder.newFolder();
+        RetryLog log = open(dir, 4096, 64, e -> false);
+        log.append("sub", "http://localhost/sub", body("a"));
+        log.append("sub", "http://localhost/sub", body("b"));
+        log.append("sub", "http://localhost/sub", body("c"));
+        log.close();
+
+        BlockingQueue<String> delivered = new LinkedBlockingQueue<>();
+        log = open(dir, 4096, 64, e -> delivered.add(text(e)));
+        assertEquals(Arrays.asList("a", "b", "c"), take(delivered, 3));
+        waitPending(log, 0L);
+        log.close();
+
+        // Nothing left after the deliveries
+        log = open(dir, 4096, 64, e -> delivered.add(text(e)));
+        assertEquals(0L, log.getPending());
+        assertNull(delivered.poll(200L, TimeUnit.MILLISECONDS));
+        log.close();
+    }
+
+    @Test
+    public void testCorruptTail() throws Exception {
+        File dir = folder.newFolder();
+        RetryLog log = open(dir, 4096, 64, e -> false);
+        log.append("sub", "http://localhost/sub", body("a"));
+        log.append("sub", "http://localhost/sub", body("b"));
+        log.close();
+
+        // Break the checksum of the second record, as a write stopped halfway
+        File segment = dir.listFiles((d, name) -> name.endsWith(".seg"))[0];
+        try (RandomAccessFile f = new RandomAccessFile(segment, "rw")) {
+            int length = f.readInt();
+            f.seek(8 + length + 8);
+            f.write(~f.readByte());
+        }
+
+        BlockingQueue<String> delivered = new LinkedBlockingQueue<>();
+        log = open(dir, 4096, 64, e -> delivered.add(text(e)));
+        assertEquals(Collections.singletonList("a"), take(delivered, 1));
+        waitPending(log, 0L);
+        // Appended after the valid records
+        log.append("sub", "http://localhost/sub", body("c"));
+        assertEquals(Collections.singletonList("c"), take(delivered, 1));
+        log.close();
+    }
+
+    @Test
+    public void testFailingWebhookDoesNotBlock() throws Exception {
+        File dir = folder.newFolder();
+        BlockingQueue<String> delivered = new LinkedBlockingQueue<>();
+        RetryLog log = open(dir, 4096, 64, e -> {
+            if (e.getSubscription().equals("down")) {
+                return false;
+            }
+            return delivered.add(text(e));
+        });
+        log.append("down", "http://down/", body("x"));
+        log.append("up", "http://up/", body("a"));
+        log.append("down", "http://down/", body("y"));
+        log.append("up", "http://up/", body("b"));
+        assertEquals(Arrays.asList("a", "b"), take(delivered, 2));
+        waitPending(log, 2L);
+        log.close();
+    }
+}
@@ -0,0 +1,142 @@
+//    HelloBridge is a bridge from HTTP to MQTT
+//    Copyright (C) 2019 Adrián Romero Corchado.
+//
+//    This file is part of HelloBridge.
+//
+//    HelloIot is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    HelloIot is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with HelloIot.  If not, see <http://www.gnu.org/licenses/>.
+//
+package com.adr.hellobridge;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ *
+ * @author adrian
+ */
+public class TopicTrieTest {
+
+    private static List<String> match(TopicTrie<String> trie, String topic) {
+        List<String> result = new ArrayList<>();
+        trie.match(topic, (filter, list) -> list.add(filter), result);
+        Collections.sort(result);
+        return result;
+    }
+
+    private static TopicTrie<String> create(String... filters) {
+        TopicTrie<String> trie = new TopicTrie<>();
+        for (String f : filters) {
+            trie.add(f, f);
+        }
+        return trie;
+    }
+
+    @Test
+    public void testExact() {
+        TopicTrie<String> trie = create("a/b", "a/b/c", "a");
+        assertEquals(Arrays.asList("a/b"), match(trie, "a/b"));
+        assertEquals(Arrays.asList("a"), match(trie, "a"));
+        assertEquals(Collections.emptyList(), match(trie, "a/c"));
+        assertEquals(Collections.emptyList(), match(trie, "a/b/c/d"));
+    }
+
+    @Test
+    public void testSingleLevel() {
+        TopicTrie<String> trie = create("a/+", "+/b", "+", "a/+/c");
+        assertEquals(Arrays.asList("+/b", "a/+"), match(trie, "a/b"));
+        assertEquals(Arrays.asList("+"), match(trie, "x"));
+        assertEquals(Arrays.asList("a/+/c"), match(trie, "a/x/c"));
+        assertEquals(Collections.emptyList(), match(trie, "a/x/y"));
+    }
+
+    @Test
+    public void testMultiLevel() {
+        TopicTrie<String> trie = create("#", "a/#", "a/b/#");
+        assertEquals(Arrays.asList("#", "a/#", "a/b/#"), match(trie, "a/b/c/d"));
+        // "a/#" also matches the parent level
+        assertEquals(Arrays.asList("#", "a/#"), match(trie, "a"));
+        assertEquals(Arrays.asList("#", "a/#", "a/b/#"), match(trie, "a/b"));
+        assertEquals(Arrays.asList("#"), match(trie, "b"));
+    }
+
+    @Test
+    public void testDollarTopics() {
+        TopicTrie<String> trie = create("#", "+/monitor", "$SYS/#", "$SYS/+");
+        // Wildcards in the first level do not match topics starting with '$'
+        assertEquals(Arrays.asList("$SYS/#", "$SYS/+"), match(trie, "$SYS/monitor"));
+        assertEquals(Arrays.asList("#", "+/monitor"), match(trie, "SYS/monitor"));
+    }
+
+    @Test
+    public void testEmptyLevels() {
+        TopicTrie<String> trie = create("+/+", "/+", "a//b", "a/+/b", "#");
+        assertEquals(Arrays.asList("#", "+/+", "/+"), match(trie, "/finance"));
+        assertEquals(Arrays.asList("#", "a/+/b", "a//b"), match(trie, "a//b"));
+        assertEquals(Arrays.asList("#", "+/+"), match(trie, "a/"));
+    }
+
+    @Test
+    public void testSeveralValues() {
+        TopicTrie<String> trie = new TopicTrie<>();
+        trie.add("a/b", "one");
+        trie.add("a/b", "two");
+        assertEquals(Arrays.asList("one", "two"), match(trie, "a/b"));
+    }
+
+    @Test
+    public void testManyChildren() {
+        // Grows the children table of a node
+        TopicTrie<String> trie = new TopicTrie<>();
+        for (int i = 0; i < 1000; i++) {
+            trie.add("a/" + i, "a/" + i);
+        }
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(Arrays.asList("a/" + i), match(trie, "a/" + i));
+        }
+        assertEquals(Collections.emptyList(), match(trie, "a/1000"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMultiLevelNotLast() {
+        create("a/#/b");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testWildcardInsideLevel() {
+        create("a/b+");
+    }
+
+    @Test
+    public void testOverlaps() {
+        assertTrue(TopicTrie.overlaps("a/b", "a/b"));
+        assertTrue(TopicTrie.overlaps("a/#", "a/b/c"));
+        assertTrue(TopicTrie.overlaps("a/#", "a"));
+        assertTrue(TopicTrie.overlaps("a/+/c", "a/b/+"));
+        assertTrue(TopicTrie.overlaps("+/+", "a/b"));
+        assertTrue(TopicTrie.overlaps("#", "a/b"));
+        assertFalse(TopicTrie.overlaps("a/b", "a/c"));
+        assertFalse(TopicTrie.overlaps("a/+", "a/b/c"));
+        assertFalse(TopicTrie.overlaps("a/+", "a"));
+        assertFalse(TopicTrie.overlaps("a/b/#", "a/c/#"));
+        assertFalse(TopicTrie.overlaps("#", "$SYS/a"));
+        assertFalse(TopicTrie.overlaps("+/a", "$SYS/a"));
+        assertTrue(TopicTrie.overlaps("$SYS/#", "$SYS/+"));
+    }
+}
@@ -0,0 +1,93 @@
+//    HelloBridge is a bridge from HTTP to MQTT
+//    Copyright (C) 2019 Adrián Romero Corchado.
+//
+//    This file is part of HelloBridge.
+//
+//    HelloIot is free software: you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation, either version 3 of the License, or
+//    (at your option) any later version.
+//
+//    HelloIot is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with HelloIot.  If not, see <http://www.gnu.org/licenses/>.
+//
+package com.adr.hellobridge;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ *
+ * @author adrian
+ */
+public class WebhookEndpointTest {
+
+    private static WebhookEndpoint endpoint(int initiallimit) {
+        return new WebhookEndpoint("localhost:80", 2, 60000L, initiallimit, 1, 8, 50L);
+    }
+
+    private static void call(WebhookEndpoint endpoint, int calls, boolean success) throws InterruptedException {
+        for (int i = 0; i < calls; i++) {
+            assertTrue(endpoint.acquire());
+        }
+        for (int i = 0; i < calls; i++) {
+            endpoint.release(success);
+        }
+    }
+
+    @Test
+    public void testSuccessAtLimitGrows() throws Exception {
+        WebhookEndpoint endpoint = endpoint(2);
+        for (int i = 0; i < 10; i++) {
+            call(endpoint, endpoint.getLimit(), true);
+        }
+        assertTrue("Limit: " + endpoint.getLimit(), endpoint.getLimit() > 2);
+        assertTrue(endpoint.getLimit() <= 8);
+    }
+
+    @Test
+    public void testIdleDoesNotGrow() throws Exception {
+        WebhookEndpoint endpoint = endpoint(4);
+        for (int i = 0; i < 100; i++) {
+            call(endpoint, 1, true);
+        }
+        assertEquals(4, endpoint.getLimit());
+    }
+
+    @Test
+    public void testFailureHalves() throws Exception {
+        WebhookEndpoint endpoint = endpoint(8);
+        call(endpoint, 1, false);
+        assertEquals(4, endpoint.getLimit());
+        assertEquals(WebhookEndpoint.State.CLOSED, endpoint.getState());
+        call(endpoint, 1, true);
+        assertEquals(4, endpoint.getLimit());
+    }
+
+    @Test
+    public void testCircuitOpens() throws Exception {
+        WebhookEndpoint endpoint = endpoint(8);
+        call(endpoint, 2, false);
+        assertEquals(WebhookEndpoint.State.OPEN, endpoint.getState());
+        assertFalse(endpoint.acquire());
+    }
+
+    @Test
+    public void testWaitIsBounded() throws Exception {
+        WebhookEndpoint endpoint = endpoint(1);
+        assertTrue(endpoint.acquire());
+        long start = System.nanoTime();
+        assertFalse(endpoint.acquire());
+        assertTrue(System.nanoTime() - start >= 40_000_000L);
+        assertEquals(1, endpoint.getInflight());
+        endpoint.release(true);
+        assertTrue(endpoint.acquire());
+    }
+}